@@ -0,0 +1,186 @@
+package bayonet.distributions;
+
+import org.apache.commons.math3.random.BitsStreamGenerator;
+
+/**
+ * Counter-based generator using the Philox4x32-10 bijection of Salmon et al. (2011),
+ * "Parallel random numbers: as easy as 1, 2, 3".
+ *
+ * The 128 bits counter is made of the index of a stream (upper 64 bits) and a position
+ * within that stream (lower 64 bits), and the 64 bits key is the seed. Each value of the
+ * counter yields four 32 bits words. Hence the output of a stream is a pure function of
+ * (seed, stream index), and any position within it can be reached in constant time with
+ * setPosition(). This makes it possible to regenerate one particle (one stream) without
+ * replaying the others, or to hand out disjoint streams to threads without a seeder.
+ *
+ * Use Random.counterBased() for a drop-in replacement of java.util.Random.
+ */
+public class Philox4x32 extends BitsStreamGenerator
+{
+  private static final long serialVersionUID = 1L;
+
+  private static final int M0 = 0xD2511F53, M1 = 0xCD9E8D57;
+  private static final int W0 = 0x9E3779B9, W1 = 0xBB67AE85;
+  private static final int N_ROUNDS = 10;
+
+  private long seed;
+  private long streamIndex;
+
+  /**
+   * Index of the next 32 bits word in the stream.
+   */
+  private long position = 0;
+
+  private final int [] counter = new int[4];
+  private final int [] key = new int[2];
+  private final int [] block = new int[4];
+  private long blockIndex = -1;
+
+  public Philox4x32(long seed)
+  {
+    this(seed, 0L);
+  }
+
+  public Philox4x32(long seed, long streamIndex)
+  {
+    this.seed = seed;
+    this.streamIndex = streamIndex;
+  }
+
+  /**
+   * @return A new generator at the start of the given stream, with the same seed
+   */
+  public Philox4x32 stream(long streamIndex)
+  {
+    return new Philox4x32(seed, streamIndex);
+  }
+
+  public long getSeed()
+  {
+    return seed;
+  }
+
+  public long getStreamIndex()
+  {
+    return streamIndex;
+  }
+
+  /**
+   * @return The number of 32 bits words consumed so far in the current stream
+   *   (nextInt() consumes one, nextDouble() and nextLong() two)
+   */
+  public long getPosition()
+  {
+    return position;
+  }
+
+  /**
+   * Jumps to the given position of the current stream (see getPosition()), in constant time.
+   */
+  public void setPosition(long position)
+  {
+    if (position < 0)
+      throw new RuntimeException("Invalid position: " + position);
+    this.position = position;
+    clear();
+  }
+
+  /**
+   * Moves to the start of the given stream.
+   */
+  public void setStream(long streamIndex)
+  {
+    this.streamIndex = streamIndex;
+    blockIndex = -1;
+    setPosition(0);
+  }
+
+  /**
+   * Sets the key, and moves to the start of stream zero.
+   */
+  @Override
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+    setStream(0);
+  }
+
+  @Override
+  public void setSeed(int seed)
+  {
+    setSeed((long) seed);
+  }
+
+  /**
+   * The first two integers form the key, the next two (if present) the stream index.
+   */
+  @Override
+  public void setSeed(int [] seed)
+  {
+    if (seed.length == 0 || seed.length > 4)
+      throw new RuntimeException("Expected between 1 and 4 integers, got " + seed.length);
+    setSeed(toLong(seed, 0));
+    if (seed.length > 2)
+      setStream(toLong(seed, 2));
+  }
+
+  private static long toLong(int [] words, int offset)
+  {
+    final long low = words[offset] & 0xFFFFFFFFL;
+    final long high = offset + 1 < words.length ? ((long) words[offset + 1]) << 32 : 0L;
+    return high | low;
+  }
+
+  @Override
+  protected int next(int bits)
+  {
+    final long index = position >>> 2;
+    if (index != blockIndex)
+    {
+      counter[0] = (int) index;
+      counter[1] = (int) (index >>> 32);
+      counter[2] = (int) streamIndex;
+      counter[3] = (int) (streamIndex >>> 32);
+      key[0] = (int) seed;
+      key[1] = (int) (seed >>> 32);
+      philox(counter, key, block);
+      blockIndex = index;
+    }
+    final int result = block[(int) (position & 3)];
+    position++;
+    return result >>> (32 - bits);
+  }
+
+  /**
+   * The Philox4x32-10 bijection.
+   *
+   * @param counter Four words, not modified
+   * @param key Two words, not modified
+   * @param output Four words, where the result is written
+   */
+  public static void philox(int [] counter, int [] key, int [] output)
+  {
+    int c0 = counter[0], c1 = counter[1], c2 = counter[2], c3 = counter[3];
+    int k0 = key[0], k1 = key[1];
+    for (int round = 0; round < N_ROUNDS; round++)
+    {
+      if (round > 0)
+      {
+        k0 += W0;
+        k1 += W1;
+      }
+      final long product0 = (M0 & 0xFFFFFFFFL) * (c0 & 0xFFFFFFFFL);
+      final long product1 = (M1 & 0xFFFFFFFFL) * (c2 & 0xFFFFFFFFL);
+      final int newC0 = ((int) (product1 >>> 32)) ^ c1 ^ k0;
+      final int newC2 = ((int) (product0 >>> 32)) ^ c3 ^ k1;
+      c1 = (int) product1;
+      c3 = (int) product0;
+      c0 = newC0;
+      c2 = newC2;
+    }
+    output[0] = c0;
+    output[1] = c1;
+    output[2] = c2;
+    output[3] = c3;
+  }
+}
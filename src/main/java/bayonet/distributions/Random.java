@@ -31,6 +31,17 @@ public class Random extends RandomAdaptor
     super(new MersenneTwister(seed));
   }
   
+  /**
+   * Create a new instance based on the counter-based Philox4x32 algorithm,
+   * where the stream is a pure function of (seed, streamIndex). Typically,
+   * streamIndex is the index of a particle, which can then be regenerated
+   * without replaying the preceding ones.
+   */
+  public static Random counterBased(long seed, long streamIndex)
+  {
+    return new Random(new Philox4x32(seed, streamIndex));
+  }
+
   /**
    * Adapts the math commons interface
    */
@@ -6,6 +6,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.ejml.simple.SimpleMatrix;
@@ -43,6 +45,13 @@ public class DiscreteFactorGraph<V> implements FactorGraph<V>
   private final Map<V, DiscreteUnaryFactor<V>> unaries = Maps.newHashMap();
   private final Map<Pair<V,V>, DiscreteBinaryFactor<V>> binaries = Maps.newHashMap();
   
+  /**
+   * See setSitePool()
+   */
+  private ForkJoinPool sitePool = null;
+  private int parallelSiteThreshold = DEFAULT_PARALLEL_SITE_THRESHOLD;
+  public static final int DEFAULT_PARALLEL_SITE_THRESHOLD = 4096;
+  
   /**
    * 
    * @param topology The undirected graphical model. Note that since
@@ -299,6 +308,29 @@ public class DiscreteFactorGraph<V> implements FactorGraph<V>
     return result;
   }
 
+  /**
+   * Process the sites of marginalize() and pointwiseProduct() in parallel, in chunks
+   * executed by the given pool. Each site is computed exactly as in the serial case, 
+   * so the results are identical. 
+   * 
+   * @param sitePool The pool, or null to process the sites serially (the default)
+   */
+  public void setSitePool(ForkJoinPool sitePool)
+  {
+    this.sitePool = sitePool;
+  }
+  
+  /**
+   * @param parallelSiteThreshold Below that number of sites, the sites are processed 
+   *   serially even if a pool is set (see setSitePool())
+   */
+  public void setParallelSiteThreshold(int parallelSiteThreshold)
+  {
+    if (parallelSiteThreshold < 1)
+      throw new RuntimeException();
+    this.parallelSiteThreshold = parallelSiteThreshold;
+  }
+
   /**
    * Used by the sum product algorithm to determine how to do marginalization and pointwise products.
    */
@@ -372,22 +404,25 @@ public class DiscreteFactorGraph<V> implements FactorGraph<V>
     final int [] newScales = new int[nSites];
     final double [] newMatrix = new double[nSites * nVariableValues]; 
     
-    for (int site = 0; site < nSites; site++)
+    forEachSites(nSites, (fromSite, toSite) ->
     {
-      int sumScales = 0;
-      for (int factor = 0; factor < nFactors; factor++)
-        sumScales += cast[factor].scales[site];
-      newScales[site] = sumScales;
-    }
-    
-    for (int site = 0; site < nSites; site++)
-      for (int varValue = 0; varValue < nVariableValues; varValue++)
+      for (int site = fromSite; site < toSite; site++)
       {
-        double prodUnnorm = 1.0;
+        int sumScales = 0;
         for (int factor = 0; factor < nFactors; factor++)
-          prodUnnorm *= cast[factor].getRawValue(site, varValue);
-        newMatrix[nVariableValues * site + varValue] = prodUnnorm;
+          sumScales += cast[factor].scales[site];
+        newScales[site] = sumScales;
       }
+      
+      for (int site = fromSite; site < toSite; site++)
+        for (int varValue = 0; varValue < nVariableValues; varValue++)
+        {
+          double prodUnnorm = 1.0;
+          for (int factor = 0; factor < nFactors; factor++)
+            prodUnnorm *= cast[factor].getRawValue(site, varValue);
+          newMatrix[nVariableValues * site + varValue] = prodUnnorm;
+        }
+    });
     
     return new DiscreteUnaryFactor(newMatrix, newScales, nVariableValues);
   }
@@ -456,40 +491,43 @@ public class DiscreteFactorGraph<V> implements FactorGraph<V>
       
       // Warning: this part of the code is less readable and easy to maintain
       // because it is in the inner loop of phylogenetic computations
-           if (degree == 0) ;
-      else if (degree == 1) for (int site = 0; site < nSites; site++) newScales[site] = scales0[site];
-      else                  for (int site = 0; site < nSites; site++) newScales[site] = scales0[site] + scales1[site];
-           
-       if (degree == 0) 
-         for (int site = 0; site < nSites; site++)
-           for (int otherIndex = 0; otherIndex < nOtherValues; otherIndex++)
-           {
-             double sum = 0.0;
-             for (int margIndex = 0; margIndex < nMarginalizedValues; margIndex++)
-               sum += binary.get(otherIndex, margIndex); 
-             newMatrix[site * nOtherValues + otherIndex] = sum; 
-           }
-       else if (degree == 1) 
-         for (int site = 0; site < nSites; site++)
-           for (int otherIndex = 0; otherIndex < nOtherValues; otherIndex++)
-           {
-             double sum = 0.0;
-             for (int margIndex = 0; margIndex < nMarginalizedValues; margIndex++)
-               sum += binary.get(otherIndex, margIndex) 
-                     * dbf0.getRawValue(site, margIndex); 
-             newMatrix[site * nOtherValues + otherIndex] = sum; 
-           }
-       else 
-         for (int site = 0; site < nSites; site++)
-           for (int otherIndex = 0; otherIndex < nOtherValues; otherIndex++)
-           {
-             double sum = 0.0;
-             for (int margIndex = 0; margIndex < nMarginalizedValues; margIndex++)
-               sum += binary.get(otherIndex, margIndex) 
-                     * dbf0.getRawValue(site, margIndex) 
-                     * dbf1.getRawValue(site, margIndex); 
-             newMatrix[site * nOtherValues + otherIndex] = sum; 
-           }
+      forEachSites(nSites, (fromSite, toSite) ->
+      {
+             if (degree == 0) ;
+        else if (degree == 1) for (int site = fromSite; site < toSite; site++) newScales[site] = scales0[site];
+        else                  for (int site = fromSite; site < toSite; site++) newScales[site] = scales0[site] + scales1[site];
+             
+         if (degree == 0) 
+           for (int site = fromSite; site < toSite; site++)
+             for (int otherIndex = 0; otherIndex < nOtherValues; otherIndex++)
+             {
+               double sum = 0.0;
+               for (int margIndex = 0; margIndex < nMarginalizedValues; margIndex++)
+                 sum += binary.get(otherIndex, margIndex); 
+               newMatrix[site * nOtherValues + otherIndex] = sum; 
+             }
+         else if (degree == 1) 
+           for (int site = fromSite; site < toSite; site++)
+             for (int otherIndex = 0; otherIndex < nOtherValues; otherIndex++)
+             {
+               double sum = 0.0;
+               for (int margIndex = 0; margIndex < nMarginalizedValues; margIndex++)
+                 sum += binary.get(otherIndex, margIndex) 
+                       * dbf0.getRawValue(site, margIndex); 
+               newMatrix[site * nOtherValues + otherIndex] = sum; 
+             }
+         else 
+           for (int site = fromSite; site < toSite; site++)
+             for (int otherIndex = 0; otherIndex < nOtherValues; otherIndex++)
+             {
+               double sum = 0.0;
+               for (int margIndex = 0; margIndex < nMarginalizedValues; margIndex++)
+                 sum += binary.get(otherIndex, margIndex) 
+                       * dbf0.getRawValue(site, margIndex) 
+                       * dbf1.getRawValue(site, margIndex); 
+               newMatrix[site * nOtherValues + otherIndex] = sum; 
+             }
+      });
       
       return new DiscreteUnaryFactor<V>(newMatrix, newScales, nOtherValues);
     }
@@ -497,6 +535,63 @@ public class DiscreteFactorGraph<V> implements FactorGraph<V>
       return marginalizeOnReducedUnariesDegree(discreteFactorGraphOperations, maxDegree, _binary, unariesOnMarginalized);
   }
   
+  /**
+   * Computation on the sites in [fromSite, toSite). Each site should only be written 
+   * by the call covering it, so that chunks can run concurrently without locks.
+   */
+  @FunctionalInterface
+  private static interface SiteKernel
+  {
+    public void compute(int fromSite, int toSite);
+  }
+  
+  /**
+   * Run the kernel on all sites, either in one call, or, if a pool is set and there 
+   * are enough sites, in chunks executed by the pool.
+   */
+  private void forEachSites(final int nSites, final SiteKernel kernel)
+  {
+    if (sitePool == null || nSites < parallelSiteThreshold)
+      kernel.compute(0, nSites);
+    else
+    {
+      final int chunkSize = Math.max(MIN_SITES_PER_CHUNK, nSites / (CHUNKS_PER_THREAD * sitePool.getParallelism()));
+      sitePool.invoke(new SiteChunk(kernel, 0, nSites, chunkSize));
+    }
+  }
+  
+  private static final int MIN_SITES_PER_CHUNK = 256;
+  private static final int CHUNKS_PER_THREAD = 4;
+  
+  private static final class SiteChunk extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final SiteKernel kernel;
+    private final int fromSite, toSite, chunkSize;
+    
+    private SiteChunk(SiteKernel kernel, int fromSite, int toSite, int chunkSize)
+    {
+      this.kernel = kernel;
+      this.fromSite = fromSite;
+      this.toSite = toSite;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (toSite - fromSite <= chunkSize)
+        kernel.compute(fromSite, toSite);
+      else
+      {
+        final int middle = (fromSite + toSite) >>> 1;
+        invokeAll(
+            new SiteChunk(kernel, fromSite, middle, chunkSize), 
+            new SiteChunk(kernel, middle, toSite, chunkSize));
+      }
+    }
+  }
+  
   /**
    * A sampling algorithm for discrete unary factors.
    * Returns unary factors with a one at the index of the sampled value,
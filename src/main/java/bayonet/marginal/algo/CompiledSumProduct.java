@@ -0,0 +1,307 @@
+package bayonet.marginal.algo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jgrapht.UndirectedGraph;
+
+import bayonet.marginal.BinaryFactor;
+import bayonet.marginal.FactorGraph;
+import bayonet.marginal.FactorOperations;
+import bayonet.marginal.UnaryFactor;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+
+/**
+ * A sum-product implementation for large trees (or forests), computing the same
+ * quantities as SumProduct, but where the factor graph is first compiled into
+ * integer indices:
+ *
+ * - nodes are numbered 0, 1, .., nNodes - 1,
+ * - the adjacency is stored in compressed sparse row (CSR) form, where entry k of
+ *   the adjacency array stands for the directed edge (message) from the node owning
+ *   row k to the node adjacency[k],
+ * - the forward and backward passes are precomputed as arrays of message indices,
+ * - the messages are stored in an array indexed by the same message indices.
+ *
+ * The passes then run without hashing, graph lookups or Pair allocations.
+ *
+ * The factors are read once, at compilation time: if the factor graph is modified
+ * afterwards, compile it again (or use SumProduct.update()).
+ *
+ * @param <V>
+ */
+public class CompiledSumProduct<V>
+{
+  private final FactorOperations<V> factorOperations;
+
+  /**
+   * The node labels, indexed by node id.
+   */
+  private final List<V> nodes;
+  private final Map<V, Integer> nodeIds;
+
+  /**
+   * The neighbours of node i are adjacency[adjacencyStart[i]], .., adjacency[adjacencyStart[i+1]-1].
+   *
+   * Message k goes from the node owning row k to adjacency[k], and reverse[k] is the
+   * message going in the opposite direction.
+   */
+  private final int [] adjacencyStart, adjacency, reverse;
+
+  private final List<UnaryFactor<V>> unaries;
+  private final List<BinaryFactor<V>> binaries;
+
+  /**
+   * One node per connected component, towards which the forward messages point.
+   */
+  private final int [] roots;
+  private final boolean [] isRoot;
+
+  /**
+   * Message indices, in an order such that each message is computed after the ones it
+   * depends on.
+   */
+  private final int [] forwardSchedule, backwardSchedule;
+
+  private final List<UnaryFactor<V>> messages;
+  private boolean forwardComputed = false, backwardComputed = false;
+
+  /**
+   * Number the nodes and messages, and compute the message schedules.
+   *
+   * @throws RuntimeException if the topology has cycles
+   */
+  public static <V> CompiledSumProduct<V> compile(FactorGraph<V> factorGraph)
+  {
+    return new CompiledSumProduct<V>(factorGraph);
+  }
+
+  private CompiledSumProduct(FactorGraph<V> factorGraph)
+  {
+    this.factorOperations = factorGraph.factorOperations();
+    final UndirectedGraph<V, ?> topology = factorGraph.getTopology();
+
+    // nodes
+    this.nodes = new ArrayList<V>(topology.vertexSet());
+    final int nNodes = nodes.size();
+    this.nodeIds = Maps.newHashMapWithExpectedSize(nNodes);
+    for (int i = 0; i < nNodes; i++)
+      nodeIds.put(nodes.get(i), i);
+
+    // adjacency
+    this.adjacencyStart = new int[nNodes + 1];
+    for (int i = 0; i < nNodes; i++)
+      adjacencyStart[i + 1] = adjacencyStart[i] + topology.degreeOf(nodes.get(i));
+    final int nMessages = adjacencyStart[nNodes];
+    this.adjacency = new int[nMessages];
+    this.reverse = new int[nMessages];
+    fillAdjacency(topology);
+
+    // factors
+    this.unaries = new ArrayList<UnaryFactor<V>>(nNodes);
+    for (int i = 0; i < nNodes; i++)
+      unaries.add(factorGraph.getUnary(nodes.get(i)));
+    this.binaries = new ArrayList<BinaryFactor<V>>(nMessages);
+    for (int i = 0; i < nNodes; i++)
+      for (int k = adjacencyStart[i]; k < adjacencyStart[i + 1]; k++)
+        binaries.add(factorGraph.getBinary(nodes.get(i), nodes.get(adjacency[k])));
+
+    // schedules: post-order of a depth first search from the root of each component
+    List<Integer> rootList = Lists.newArrayList();
+    this.forwardSchedule = new int[nMessages / 2];
+    int nScheduled = 0;
+    this.isRoot = new boolean[nNodes];
+    final boolean [] visited = new boolean[nNodes];
+    final int [] parentMessage = new int[nNodes];
+    final int [] nextNeighbor = new int[nNodes];
+    ArrayDeque<Integer> stack = new ArrayDeque<Integer>();
+    for (int root = 0; root < nNodes; root++)
+      if (!visited[root])
+      {
+        rootList.add(root);
+        isRoot[root] = true;
+        visited[root] = true;
+        parentMessage[root] = -1;
+        nextNeighbor[root] = adjacencyStart[root];
+        stack.push(root);
+        while (!stack.isEmpty())
+        {
+          final int current = stack.peek();
+          if (nextNeighbor[current] < adjacencyStart[current + 1])
+          {
+            final int k = nextNeighbor[current]++;
+            final int child = adjacency[k];
+            if (k == parentMessage[current])
+              continue;
+            if (visited[child])
+              throw new RuntimeException("Sum product requires an acyclic topology");
+            visited[child] = true;
+            parentMessage[child] = reverse[k];
+            nextNeighbor[child] = adjacencyStart[child];
+            stack.push(child);
+          }
+          else
+          {
+            stack.pop();
+            if (parentMessage[current] != -1)
+              forwardSchedule[nScheduled++] = parentMessage[current];
+          }
+        }
+      }
+    if (nScheduled != forwardSchedule.length)
+      throw new RuntimeException();
+    this.roots = new int[rootList.size()];
+    for (int i = 0; i < roots.length; i++)
+      roots[i] = rootList.get(i);
+    this.backwardSchedule = new int[forwardSchedule.length];
+    for (int i = 0; i < forwardSchedule.length; i++)
+      backwardSchedule[i] = reverse[forwardSchedule[forwardSchedule.length - 1 - i]];
+
+    this.messages = new ArrayList<UnaryFactor<V>>(nMessages);
+    for (int k = 0; k < nMessages; k++)
+      messages.add(null);
+  }
+
+  /**
+   * Each undirected edge takes the next free slot in the row of each of its end points,
+   * giving two messages which are the reverse of each other.
+   */
+  private <E> void fillAdjacency(UndirectedGraph<V, E> topology)
+  {
+    final int [] nextFree = new int[nodes.size()];
+    System.arraycopy(adjacencyStart, 0, nextFree, 0, nextFree.length);
+    for (E edge : topology.edgeSet())
+    {
+      final int 
+        source = nodeIds.get(topology.getEdgeSource(edge)),
+        target = nodeIds.get(topology.getEdgeTarget(edge)),
+        forward = nextFree[source]++,
+        backward = nextFree[target]++;
+      adjacency[forward] = target;
+      adjacency[backward] = source;
+      reverse[forward] = backward;
+      reverse[backward] = forward;
+    }
+  }
+  
+  /**
+   * Computes the sum of the log normalization of each tree in the forest.
+   *
+   * @return The log normalization of the factor graph.
+   */
+  public double logNormalization()
+  {
+    computeForwardMessages();
+    double sum = 0.0;
+    for (int root : roots)
+      sum += computeMarginal(root).logNormalization();
+    return sum;
+  }
+
+  /**
+   * The node marginal at the queryNode variable.
+   */
+  public UnaryFactor<V> computeMarginal(V queryNode)
+  {
+    return computeMarginal(nodeId(queryNode));
+  }
+
+  /**
+   * The node marginal at the node with the given id (see nodeId()).
+   */
+  public UnaryFactor<V> computeMarginal(int queryNodeId)
+  {
+    computeForwardMessages();
+    if (!isRoot[queryNodeId])
+      computeBackwardMessages();
+    return factorOperations.pointwiseProduct(incoming(queryNodeId, -1));
+  }
+
+  public UnaryFactor<V> getMessage(V source, V dest)
+  {
+    final int k = messageIndex(nodeId(source), nodeId(dest));
+    computeForwardMessages();
+    if (messages.get(k) == null)
+      computeBackwardMessages();
+    return messages.get(k);
+  }
+
+  public int nNodes()
+  {
+    return nodes.size();
+  }
+
+  public V node(int nodeId)
+  {
+    return nodes.get(nodeId);
+  }
+
+  public int nodeId(V node)
+  {
+    Integer result = nodeIds.get(node);
+    if (result == null)
+      throw new RuntimeException("Unknown node: " + node);
+    return result;
+  }
+
+  private void computeForwardMessages()
+  {
+    if (forwardComputed)
+      return;
+    for (int k : forwardSchedule)
+      computeMessage(k);
+    forwardComputed = true;
+  }
+
+  private void computeBackwardMessages()
+  {
+    if (backwardComputed)
+      return;
+    for (int k : backwardSchedule)
+      computeMessage(k);
+    backwardComputed = true;
+  }
+
+  private void computeMessage(int k)
+  {
+    final int source = adjacency[reverse[k]];
+    messages.set(k, factorOperations.marginalize(binaries.get(k), incoming(source, adjacency[k])));
+  }
+
+  /**
+   * The unary and incoming messages at a node, excluding the message from the given 
+   * neighbour (or none if -1).
+   */
+  private List<UnaryFactor<V>> incoming(int node, int excludedNeighbor)
+  {
+    List<UnaryFactor<V>> result = new ArrayList<UnaryFactor<V>>(adjacencyStart[node + 1] - adjacencyStart[node] + 1);
+    for (int k = adjacencyStart[node]; k < adjacencyStart[node + 1]; k++)
+      if (adjacency[k] != excludedNeighbor)
+      {
+        UnaryFactor<V> message = messages.get(reverse[k]);
+        if (message == null)
+          throw new RuntimeException();
+        result.add(message);
+      }
+    if (unaries.get(node) != null)
+      result.add(unaries.get(node));
+    return result;
+  }
+
+  /**
+   * @return The index of the message from source to destination.
+   */
+  private int messageIndex(int source, int destination)
+  {
+    for (int k = adjacencyStart[source]; k < adjacencyStart[source + 1]; k++)
+      if (adjacency[k] == destination)
+        return k;
+    throw new RuntimeException("No edge between " + nodes.get(source) + " and " + nodes.get(destination));
+  }
+}
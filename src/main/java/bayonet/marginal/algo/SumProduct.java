@@ -1,9 +1,15 @@
 package bayonet.marginal.algo;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.jgrapht.Graphs;
@@ -38,6 +44,18 @@ public class SumProduct<V>
   public final Map<Pair<V, V>, UnaryFactor<V>> cachedMessages = Maps.newHashMap();
   public final FactorOperations<V> factorOperations;
   
+  /**
+   * For each cached message, the unary on its source and the binary factor used to compute it.
+   * Since factor graphs replace factors rather than modifying them, comparing these
+   * with the current factors tells which messages are out of date (see update()).
+   */
+  private final Map<Pair<V, V>, Pair<UnaryFactor<V>, BinaryFactor<V>>> factorVersions = Maps.newHashMap();
+  
+  /**
+   * See setMessagePool()
+   */
+  private ForkJoinPool messagePool = null;
+  
   /**
    * @param factorGraph The model on which the sum product algorithm should be ran on.
    */
@@ -47,6 +65,24 @@ public class SumProduct<V>
     this.factorOperations = factorGraph.factorOperations();
   }
   
+  /**
+   * Compute the messages in parallel: each message is computed, by a task executed
+   * by the given (work-stealing) pool, as soon as the messages it depends on are 
+   * available. Messages in disjoint subtrees, and in distinct trees of a forest, are 
+   * therefore computed concurrently. This is in addition to the parallelization of the 
+   * factor operations themselves, if any (e.g. DiscreteFactorGraph.setSitePool()). 
+   * The messages are identical to the ones computed serially. 
+   * 
+   * The factor operations should support concurrent calls.
+   * 
+   * @param messagePool The pool, or null to compute the messages one at a time 
+   *   in post-order (the default)
+   */
+  public void setMessagePool(ForkJoinPool messagePool)
+  {
+    this.messagePool = messagePool;
+  }
+  
   /**
    * Computes the sum of the log normalization of each tree in the forest.
    * 
@@ -56,13 +92,97 @@ public class SumProduct<V>
   {
     double sum = 0.0;
     
-    // add the logNormalization of each connected component
+    List<V> roots = Lists.newArrayList();
     for (Set<V> cc : GraphUtils.connectedComponents(factorGraph.getTopology()))
-      sum += computeMarginal(BriefCollections.pick(cc)).logNormalization();
+      roots.add(BriefCollections.pick(cc));
+    
+    // schedule the messages of all the trees at once
+    computeMessages(roots, true);
+    
+    // add the logNormalization of each connected component
+    for (V root : roots)
+      sum += computeMarginal(root).logNormalization();
     
     return sum;
   }
   
+  /**
+   * Prepare for incremental recomputation after some factors of the factor graph were 
+   * changed (e.g. via DiscreteFactorGraph.setUnary(), unaryTimesEqual(), or removing then 
+   * setting a binary factor): invalidate the cached messages computed with a factor that 
+   * has been replaced since, as well as the messages depending on these. 
+   * 
+   * The other messages are kept, so for example after a change at one node, the next 
+   * logNormalization() only recomputes the messages on the path from that node to the root.
+   * 
+   * @return The number of messages invalidated
+   */
+  public int update()
+  {
+    List<Pair<V,V>> outdated = Lists.newArrayList();
+    for (Pair<V,V> message : factorVersions.keySet())
+    {
+      Pair<UnaryFactor<V>, BinaryFactor<V>> versions = factorVersions.get(message);
+      if (versions.getLeft() != factorGraph.getUnary(message.getLeft()) || 
+          versions.getRight() != factorGraph.getBinary(message.getLeft(), message.getRight()))
+        outdated.add(message);
+    }
+    int nInvalidated = 0;
+    for (Pair<V,V> message : outdated)
+      nInvalidated += invalidate(message);
+    return nInvalidated;
+  }
+  
+  /**
+   * Invalidate the cached messages that depend on the unary of the given node, without
+   * checking whether it changed (see update()).
+   * 
+   * @return The number of messages invalidated
+   */
+  public int invalidateUnary(V node)
+  {
+    int nInvalidated = 0;
+    for (V neighbor : Graphs.neighborListOf(factorGraph.getTopology(), node))
+      nInvalidated += invalidate(Pair.of(node, neighbor));
+    return nInvalidated;
+  }
+  
+  /**
+   * Invalidate the cached messages that depend on the binary factor between the two 
+   * given nodes, without checking whether it changed (see update()).
+   * 
+   * @return The number of messages invalidated
+   */
+  public int invalidateBinary(V node1, V node2)
+  {
+    return invalidate(Pair.of(node1, node2)) + invalidate(Pair.of(node2, node1));
+  }
+  
+  /**
+   * Remove the given message from the cache, as well as the messages depending on it.
+   * 
+   * Since a message is computed after the ones it depends on, and removed with the ones 
+   * depending on it, the search can stop at messages that are not cached.
+   */
+  private int invalidate(Pair<V,V> message)
+  {
+    int nInvalidated = 0;
+    ArrayDeque<Pair<V,V>> stack = new ArrayDeque<>();
+    stack.push(message);
+    while (!stack.isEmpty())
+    {
+      Pair<V,V> current = stack.pop();
+      if (cachedMessages.remove(current) == null)
+        continue;
+      factorVersions.remove(current);
+      nInvalidated++;
+      for (V next : Graphs.neighborListOf(factorGraph.getTopology(), current.getRight()))
+        if (!next.equals(current.getLeft()))
+          stack.push(Pair.of(current.getRight(), next));
+    }
+    return nInvalidated;
+  }
+  
   public UnaryFactor<V> getMessage(V source, V dest) 
   {
     computeMessages(dest, true);
@@ -111,27 +231,140 @@ public class SumProduct<V>
   }
   
   private void computeMessages(V lastNode, boolean isForward)
+  {
+    computeMessages(Collections.singletonList(lastNode), isForward);
+  }
+  
+  private void computeMessages(List<V> lastNodes, boolean isForward)
   {
     if (allMessagesComputed())
       return;
     
-    EdgeSorter<V> sorter = EdgeSorter.newEdgeSorter(factorGraph.getTopology(), lastNode);
-    ArrayList<Pair<V,V>> allMessagesToCompute = sorter.messages(isForward);
+    ArrayList<Pair<V,V>> allMessagesToCompute = Lists.newArrayList();
+    for (V lastNode : lastNodes)
+    {
+      EdgeSorter<V> sorter = EdgeSorter.newEdgeSorter(factorGraph.getTopology(), lastNode);
+      for (Pair<V,V> messageToCompute : sorter.messages(isForward))
+        if (!cachedMessages.containsKey(messageToCompute))
+          allMessagesToCompute.add(messageToCompute);
+    }
     
-    for (Pair<V,V> messageToCompute : allMessagesToCompute)
-      if (!cachedMessages.containsKey(messageToCompute))
-        cachedMessages.put(messageToCompute, computeMessage(messageToCompute));
+    if (messagePool == null)
+      for (Pair<V,V> messageToCompute : allMessagesToCompute)
+        cache(messageToCompute, computeMessage(messageToCompute, null));
+    else
+    {
+      MessageScheduler scheduler = new MessageScheduler(allMessagesToCompute);
+      messagePool.invoke(scheduler);
+      for (Pair<V,V> messageToCompute : allMessagesToCompute)
+        cache(messageToCompute, scheduler.computed.get(messageToCompute));
+    }
+  }
+  
+  private void cache(Pair<V,V> message, UnaryFactor<V> factor)
+  {
+    cachedMessages.put(message, factor);
+    factorVersions.put(message, Pair.of(
+        factorGraph.getUnary(message.getLeft()), 
+        factorGraph.getBinary(message.getLeft(), message.getRight())));
+  }
+  
+  /**
+   * Computes a list of messages (listed in an order compatible with their dependencies), 
+   * launching each one when the messages it depends on are computed. 
+   * 
+   * The new messages are stored in computed, while cachedMessages is only read.
+   */
+  private class MessageScheduler extends CountedCompleter<Void>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The messages with no incoming message to compute, listed before any task is 
+     * launched (once tasks run, counters reaching zero are handled by the tasks).
+     */
+    private final List<Pair<V,V>> initiallyReady = Lists.newArrayList();
+    private final Map<Pair<V,V>, UnaryFactor<V>> computed = new ConcurrentHashMap<>();
+    
+    /**
+     * For each message to compute, the number of its incoming messages not yet computed, 
+     * and the messages to compute that depend on it.
+     */
+    private final Map<Pair<V,V>, AtomicInteger> nMissingIncoming = Maps.newHashMap();
+    private final Map<Pair<V,V>, List<Pair<V,V>>> dependents = Maps.newHashMap();
+    
+    private MessageScheduler(List<Pair<V,V>> messages)
+    {
+      for (Pair<V,V> message : messages)
+      {
+        nMissingIncoming.put(message, new AtomicInteger());
+        dependents.put(message, new ArrayList<Pair<V,V>>());
+      }
+      for (Pair<V,V> message : messages)
+        for (Pair<V,V> incoming : GraphUtils.distinctIncoming(factorGraph.getTopology(), message))
+          if (dependents.containsKey(incoming))
+          {
+            dependents.get(incoming).add(message);
+            nMissingIncoming.get(message).incrementAndGet();
+          }
+      for (Pair<V,V> message : messages)
+        if (nMissingIncoming.get(message).get() == 0)
+          initiallyReady.add(message);
+    }
+
+    @Override
+    public void compute()
+    {
+      for (Pair<V,V> message : initiallyReady)
+        launch(message);
+      tryComplete();
+    }
+    
+    private void launch(Pair<V,V> message)
+    {
+      addToPendingCount(1);
+      new MessageTask(this, message).fork();
+    }
+  }
+  
+  private class MessageTask extends CountedCompleter<Void>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final MessageScheduler scheduler;
+    private final Pair<V,V> message;
+    
+    private MessageTask(MessageScheduler scheduler, Pair<V,V> message)
+    {
+      super(scheduler);
+      this.scheduler = scheduler;
+      this.message = message;
+    }
+
+    @Override
+    public void compute()
+    {
+      scheduler.computed.put(message, computeMessage(message, scheduler.computed));
+      for (Pair<V,V> dependent : scheduler.dependents.get(message))
+        if (scheduler.nMissingIncoming.get(dependent).decrementAndGet() == 0)
+          scheduler.launch(dependent);
+      tryComplete();
+    }
   }
 
   private boolean allMessagesComputed()
   {
     // when everything is computed, there is one message flowing 
     // in both direction for each edge
-    return factorGraph.getTopology().edgeSet().size() == 2 * cachedMessages.size();
+    return 2 * factorGraph.getTopology().edgeSet().size() == cachedMessages.size();
   }
   
+  /**
+   * @param newMessages Messages not yet in cachedMessages, looked up first (or null if none)
+   */
   private UnaryFactor<V> computeMessage(
-      Pair<V, V> messageToCompute)
+      Pair<V, V> messageToCompute,
+      Map<Pair<V, V>, UnaryFactor<V>> newMessages)
   {
     V source = messageToCompute.getLeft(),
       destination = messageToCompute.getRight();
@@ -139,7 +372,9 @@ public class SumProduct<V>
     // gather incoming factors
     List<UnaryFactor<V>> toMultiply = Lists.newArrayList();
     for (Pair<V,V> incomingPreviouslyComputedMessages : GraphUtils.distinctIncoming(factorGraph.getTopology(), messageToCompute))
-      toMultiply.add(getFromCache(incomingPreviouslyComputedMessages, false));
+      toMultiply.add(newMessages != null && newMessages.containsKey(incomingPreviouslyComputedMessages) ? 
+          newMessages.get(incomingPreviouslyComputedMessages) :
+          getFromCache(incomingPreviouslyComputedMessages, false));
     UnaryFactor<V> modelFactor = factorGraph.getUnary(source);
     if (modelFactor != null)
       toMultiply.add(modelFactor);
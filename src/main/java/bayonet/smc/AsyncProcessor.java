@@ -0,0 +1,190 @@
+package bayonet.smc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+
+/**
+ * Runs a processor on a separate thread, fed through a bounded queue, so that
+ * expensive processing (writing traces, computing statistics, ..) overlaps 
+ * with sampling instead of stalling it. 
+ * 
+ * The items are processed in the order in which they were accepted, by a 
+ * single worker thread. Call close() to wait for all accepted items to be 
+ * processed; an exception thrown by the processor is re-thrown by the next 
+ * call to accept() or close(). If the worker stops (e.g. it is interrupted), 
+ * accept() and close() throw instead of waiting for space in the queue.
+ * 
+ * @param <S>
+ */
+public class AsyncProcessor<S> implements Consumer<S>, AutoCloseable
+{
+  /**
+   * Policy used when the queue is full.
+   */
+  public static enum BackPressure 
+  { 
+    /**
+     * Wait for the worker to free up space in the queue. 
+     */
+    BLOCK, 
+    
+    /**
+     * Discard the item (see numberOfDroppedItems()). 
+     */
+    DROP 
+  }
+  
+  private static final Object END = new Object();
+  
+  /**
+   * While waiting for space in the queue, check that the worker is still running this often.
+   */
+  private static final long WORKER_CHECK_INTERVAL_MILLIS = 10;
+  
+  private final Consumer<S> processor;
+  private final BlockingQueue<Object> queue;
+  private final BackPressure backPressure;
+  private final Thread worker;
+  private volatile Throwable failure = null;
+  private long nDropped = 0;
+  private boolean closed = false;
+  
+  /**
+   * @param processor
+   * @param capacity Maximum number of items waiting to be processed.
+   * @param backPressure
+   * @param threadFactory Used to create the worker thread (e.g. a virtual thread factory on recent JVMs)
+   */
+  public AsyncProcessor(Consumer<S> processor, int capacity, BackPressure backPressure, ThreadFactory threadFactory)
+  {
+    this.processor = processor;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.backPressure = backPressure;
+    this.worker = threadFactory.newThread(this::processItems);
+    this.worker.start();
+  }
+  
+  /**
+   * Use a daemon platform thread as worker.
+   */
+  public AsyncProcessor(Consumer<S> processor, int capacity, BackPressure backPressure)
+  {
+    this(processor, capacity, backPressure, runnable -> 
+    {
+      Thread result = new Thread(runnable, "AsyncProcessor");
+      result.setDaemon(true);
+      return result;
+    });
+  }
+
+  @Override
+  public void accept(S item)
+  {
+    checkFailure();
+    if (closed)
+      throw new IllegalStateException("Processor already closed");
+    if (item == null)
+      throw new IllegalArgumentException("Null items are not supported");
+    switch (backPressure)
+    {
+      case BLOCK :
+        put(item);
+        break;
+      case DROP :
+        if (!queue.offer(item))
+          nDropped++;
+        break;
+      default :
+        throw new RuntimeException();
+    }
+  }
+  
+  /**
+   * Wait until all the accepted items are processed and stop the worker.
+   */
+  @Override
+  public void close()
+  {
+    if (closed)
+      return;
+    closed = true;
+    put(END);
+    try
+    {
+      worker.join();
+    } 
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    checkFailure();
+  }
+  
+  /**
+   * @return Number of items discarded because the queue was full (always zero with BackPressure.BLOCK).
+   */
+  public long numberOfDroppedItems()
+  {
+    return nDropped;
+  }
+  
+  private void put(Object item)
+  {
+    try
+    {
+      while (!queue.offer(item, WORKER_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS))
+        if (!worker.isAlive())
+        {
+          checkFailure();
+          throw new RuntimeException("Processor worker stopped");
+        }
+    } 
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  private void processItems()
+  {
+    while (true)
+    {
+      final Object item;
+      try
+      {
+        item = queue.take();
+      } 
+      catch (InterruptedException e)
+      {
+        failure = e;
+        return;
+      }
+      if (item == END)
+        return;
+      // after a failure, keep draining so that the sampling thread is not blocked
+      if (failure == null)
+        try 
+        {
+          processor.accept((S) item);
+        }
+        catch (Throwable t)
+        {
+          failure = t;
+        }
+    }
+  }
+  
+  private void checkFailure()
+  {
+    if (failure != null)
+      throw new RuntimeException("Processor failed", failure);
+  }
+}
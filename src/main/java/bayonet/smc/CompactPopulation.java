@@ -37,6 +37,73 @@ public class CompactPopulation
     logSumOfSquares = NumericalUtils.logAdd(logSumOfSquares, 2 * logWeight);
   }
   
+  /**
+   * Batched version of insertLogWeight(), adding logWeights[from], .., logWeights[to-1].
+   * 
+   * Instead of two logAdd per weight (two exp and two log1p), the weights are shifted 
+   * by the maximum of the batch, then accumulated in linear scale with Kahan compensated 
+   * summation (one exp per weight, the square being obtained by a multiplication). 
+   * The maximum is found in a separate branch-free loop, which the JIT can vectorize.
+   * The batch is then combined with the current statistics with one logAdd each.
+   * 
+   * Tolerance: on 10^7 standard Gaussian log weights inserted by batches of 1024, logZEstimate() 
+   * is within 1e-12 (absolute) and the ESS within 1e-5 (relative) of a double-double precision 
+   * reference (see TestCompactPopulation). Repeated calls to insertLogWeight() are less accurate 
+   * on large populations, since logAdd() discards terms smaller than exp(-20) times the running 
+   * sum (a relative ESS difference of 6e-4 on the same example). The two methods are therefore 
+   * not bitwise identical: a given sequence of weights should always be inserted the same way 
+   * when exact comparisons are needed (see StreamingPropagator).
+   * 
+   * @param logWeights
+   * @param from Inclusive
+   * @param to Exclusive
+   */
+  public void insertLogWeights(double [] logWeights, int from, int to)
+  {
+    if (to <= from)
+      return;
+    nParticles += to - from;
+    
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = from; i < to; i++)
+      max = Math.max(max, logWeights[i]);
+    if (max == Double.NEGATIVE_INFINITY)
+      return;
+    
+    double sum = 0.0, sumCompensation = 0.0;
+    double sumOfSquares = 0.0, sumOfSquaresCompensation = 0.0;
+    for (int i = from; i < to; i++)
+    {
+      final double weight = Math.exp(logWeights[i] - max);
+      
+      final double y = weight - sumCompensation;
+      final double t = sum + y;
+      sumCompensation = (t - sum) - y;
+      sum = t;
+      
+      final double ySquare = weight * weight - sumOfSquaresCompensation;
+      final double tSquare = sumOfSquares + ySquare;
+      sumOfSquaresCompensation = (tSquare - sumOfSquares) - ySquare;
+      sumOfSquares = tSquare;
+    }
+    
+    logSum          = NumericalUtils.logAdd(logSum,              max + Math.log(sum));
+    logSumOfSquares = NumericalUtils.logAdd(logSumOfSquares, 2 * max + Math.log(sumOfSquares));
+  }
+  
+  /**
+   * Add the sufficient statistics of another population into this one.
+   * Useful to combine populations grown independently (e.g. in parallel).
+   * 
+   * @param other
+   */
+  public void merge(CompactPopulation other)
+  {
+    nParticles += other.nParticles;
+    logSum          = NumericalUtils.logAdd(logSum,          other.logSum);
+    logSumOfSquares = NumericalUtils.logAdd(logSumOfSquares, other.logSumOfSquares);
+  }
+  
   /**
    * @return The effective sampling size (ESS).
    */
@@ -0,0 +1,219 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+
+/**
+ * Stores the ancestral tree of the particles of an SMC algorithm, pruning the 
+ * branches that have no descendant in the current generation. 
+ * 
+ * This is the path storage scheme of:
+ * Pierre E. Jacob, Lawrence M. Murray, Sylvain Rubenthaler. (2015) Path storage in 
+ * the particle filter. Statistics and Computing.
+ * 
+ * For T generations of N particles, the expected number of stored nodes is 
+ * O(T + N log N) (instead of O(T N) when keeping every generation). Each node 
+ * is represented by entries in primitive arrays (parent, number of children, 
+ * generation and index in that generation) plus a reference to the particle, 
+ * and is recycled once pruned.
+ * 
+ * @param <P> type of the particles
+ */
+public class Genealogy<P>
+{
+  private static final int NONE = -1;
+  
+  private int [] parents;
+  private int [] nChildren;
+  private int [] generations;
+  private int [] particleIndices;
+  private Object [] particles;
+  
+  /**
+   * Node ids of the particles of the current generation.
+   */
+  private int [] leaves;
+  
+  /**
+   * Stack of recycled node ids.
+   */
+  private int [] freeNodes;
+  private int nFreeNodes = 0;
+  
+  /**
+   * Number of node ids ever allocated (recycled or not).
+   */
+  private int nAllocated = 0;
+  private int nGenerations = 1;
+  
+  /**
+   * Number of nodes of the first generation not yet pruned.
+   */
+  private int nRoots;
+  
+  /**
+   * @param initialParticles The particles of the first generation.
+   */
+  public Genealogy(List<P> initialParticles)
+  {
+    final int initialCapacity = Math.max(16, 4 * initialParticles.size());
+    parents = new int[initialCapacity];
+    nChildren = new int[initialCapacity];
+    generations = new int[initialCapacity];
+    particleIndices = new int[initialCapacity];
+    particles = new Object[initialCapacity];
+    freeNodes = new int[initialCapacity];
+    leaves = new int[initialParticles.size()];
+    nRoots = leaves.length;
+    for (int i = 0; i < leaves.length; i++)
+      leaves[i] = newNode(NONE, 0, i, initialParticles.get(i));
+  }
+  
+  /**
+   * Add a generation. 
+   * 
+   * @param ancestors For each new particle, the index of its parent in the current generation.
+   * @param newParticles The new particles
+   */
+  public void addGeneration(int [] ancestors, List<P> newParticles)
+  {
+    if (ancestors.length != newParticles.size())
+      throw new RuntimeException("Dimensionality of ancestors should match the number of particles");
+    final int [] newLeaves = new int[ancestors.length];
+    for (int i = 0; i < ancestors.length; i++)
+    {
+      final int parent = leaves[ancestors[i]];
+      nChildren[parent]++;
+      newLeaves[i] = newNode(parent, nGenerations, i, newParticles.get(i));
+    }
+    // the old leaves are now internal nodes: prune those without descendants
+    for (int leaf : leaves)
+      if (nChildren[leaf] == 0)
+        prune(leaf);
+    leaves = newLeaves;
+    nGenerations++;
+  }
+  
+  /**
+   * Add a generation from a population tracking its ancestors.
+   * 
+   * @param population
+   */
+  public void addGeneration(ParticlePopulation<P> population)
+  {
+    if (population.ancestors == null)
+      throw new RuntimeException("The population should track its ancestors");
+    final int [] ancestors = new int[population.nParticles()];
+    for (int i = 0; i < ancestors.length; i++)
+      ancestors[i] = population.getAncestor(i);
+    addGeneration(ancestors, population.particles);
+  }
+  
+  /**
+   * @param particleIndex Index of a particle in the current generation.
+   * @return For each generation, the index of the ancestor of the given particle in that generation.
+   */
+  public int [] trajectoryIndices(int particleIndex)
+  {
+    final int [] result = new int[nGenerations];
+    for (int node = leaves[particleIndex]; node != NONE; node = parents[node])
+      result[generations[node]] = particleIndices[node];
+    return result;
+  }
+  
+  /**
+   * @param particleIndex Index of a particle in the current generation.
+   * @return The ancestors of the given particle, from the first generation to the current one.
+   */
+  @SuppressWarnings("unchecked")
+  public List<P> trajectory(int particleIndex)
+  {
+    final Object [] result = new Object[nGenerations];
+    for (int node = leaves[particleIndex]; node != NONE; node = parents[node])
+      result[generations[node]] = particles[node];
+    return (List<P>) new ArrayList<>(Arrays.asList(result));
+  }
+  
+  /**
+   * @return The generation of the most recent common ancestor of all the current particles,
+   *   or -1 if the current particles do not all have a common ancestor. 
+   *   Useful to diagnose path degeneracy.
+   */
+  public int mostRecentCommonAncestorGeneration()
+  {
+    if (nRoots > 1)
+      return -1;
+    // since dead branches are pruned, this is the branching node closest to the root
+    int result = generations[leaves[0]];
+    for (int node = parents[leaves[0]]; node != NONE; node = parents[node])
+      if (nChildren[node] > 1)
+        result = generations[node];
+    return result;
+  }
+  
+  public int nGenerations()
+  {
+    return nGenerations;
+  }
+  
+  public int nParticles()
+  {
+    return leaves.length;
+  }
+  
+  /**
+   * @return The number of nodes currently stored (excluding the pruned ones).
+   */
+  public int nStoredNodes()
+  {
+    return nAllocated - nFreeNodes;
+  }
+  
+  private void prune(int node)
+  {
+    while (node != NONE && nChildren[node] == 0)
+    {
+      final int parent = parents[node];
+      particles[node] = null;
+      freeNodes[nFreeNodes++] = node;
+      if (parent != NONE)
+        nChildren[parent]--;
+      else
+        nRoots--;
+      node = parent;
+    }
+  }
+  
+  private int newNode(int parent, int generation, int particleIndex, P particle)
+  {
+    final int result;
+    if (nFreeNodes > 0)
+      result = freeNodes[--nFreeNodes];
+    else
+    {
+      if (nAllocated == parents.length)
+        grow();
+      result = nAllocated++;
+    }
+    parents[result] = parent;
+    nChildren[result] = 0;
+    generations[result] = generation;
+    particleIndices[result] = particleIndex;
+    particles[result] = particle;
+    return result;
+  }
+  
+  private void grow()
+  {
+    final int newCapacity = 2 * parents.length;
+    parents = Arrays.copyOf(parents, newCapacity);
+    nChildren = Arrays.copyOf(nChildren, newCapacity);
+    generations = Arrays.copyOf(generations, newCapacity);
+    particleIndices = Arrays.copyOf(particleIndices, newCapacity);
+    particles = Arrays.copyOf(particles, newCapacity);
+    freeNodes = Arrays.copyOf(freeNodes, newCapacity);
+  }
+}
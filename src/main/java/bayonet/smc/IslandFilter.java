@@ -0,0 +1,586 @@
+package bayonet.smc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import bayonet.smc.StreamingBootstrapFilter.LatentSimulator;
+import bayonet.smc.StreamingBootstrapFilter.ObservationDensity;
+import bayonet.smc.StreamingPropagator.PropagationResult;
+import bayonet.smc.StreamingPropagator.PropagatorOptions;
+
+
+
+/**
+ * Island particle filter, where each island is a StreamingBootstrapFilter running 
+ * in its own worker JVM. See:
+ * Christelle Vergé, Cyrille Dubarry, Pierre Del Moral and Eric Moulines. (2015) 
+ * On parallel implementation of sequential Monte Carlo methods: the island 
+ * particle model. Statistics and Computing.
+ * 
+ * Each island carries a weight, multiplied at each generation by the island's 
+ * estimate of the incremental normalization. Every exchangeInterval generations, the 
+ * islands are resampled according to these weights: the islands drawn at least 
+ * once keep their particles, and the extra copies replace the particles of the 
+ * islands not drawn. The estimate of log(Z) is the sum, over the periods between 
+ * island resampling steps, of the log of the average island weight.
+ * 
+ * The coordinator (this object) talks to the workers over loopback sockets. The 
+ * workers are started with workerClassPath, and build the model by instantiating 
+ * the given ModelFactory, which should therefore be a public class with a public
+ * no-argument constructor, creating the same model in every JVM. Particles are 
+ * exchanged with Java serialization.
+ * 
+ * Only the workers started by this object can connect: each receives a random token 
+ * on its standard input (which, unlike the command line, other users cannot read), 
+ * and sends it back when connecting. Both ends only 
+ * deserialize the classes needed by the protocol, the classes of bayonet, those of 
+ * the package of the ModelFactory and those matching allowedClassPrefixes.
+ */
+public class IslandFilter implements AutoCloseable
+{
+  /**
+   * Builds the model in each worker JVM.
+   */
+  public static interface ModelFactory<L,E>
+  {
+    public LatentSimulator<L> latentSimulator();
+    public ObservationDensity<L,E> observationDensity();
+    public List<E> emissions();
+  }
+  
+  /**
+   * Number of islands, each running in its own JVM.
+   */
+  public int nIslands = 4;
+  
+  /**
+   * Islands are resampled every that many generations (0 for never).
+   */
+  public int exchangeInterval = 1;
+  
+  public ResamplingScheme islandResamplingScheme = ResamplingScheme.STRATIFIED;
+  
+  /**
+   * Options of the propagator of each island (the resamplingRandom of each island is 
+   * seeded by the coordinator).
+   */
+  public PropagatorOptions options = new PropagatorOptions();
+  
+  /**
+   * Extra arguments of the worker JVMs (e.g. -Xmx4g).
+   */
+  public List<String> workerJvmArguments = new ArrayList<>();
+  
+  public String workerClassPath = System.getProperty("java.class.path");
+  
+  /**
+   * Time allowed for the workers to start and connect to the coordinator.
+   */
+  public int workerConnectionTimeoutMillis = 60000;
+  
+  /**
+   * Prefixes of the names of the other classes that may be deserialized, e.g. the 
+   * classes of the particles when they are not in the package of the ModelFactory.
+   */
+  public List<String> allowedClassPrefixes = new ArrayList<>();
+  
+  private final String modelFactoryClassName;
+  private final Random random;
+  private final List<Process> processes = new ArrayList<>();
+  private Island [] islands = null;
+  
+  /**
+   * @param modelFactory 
+   * @param random Used to seed the islands, and to resample them
+   */
+  @SuppressWarnings("rawtypes")
+  public IslandFilter(Class<? extends ModelFactory> modelFactory, Random random)
+  {
+    this.modelFactoryClassName = modelFactory.getName();
+    this.random = random;
+  }
+  
+  /**
+   * Starts the workers if needed (they are reused by subsequent calls, until close()).
+   * 
+   * @return The estimate for log(Z)
+   */
+  public double sample()
+  {
+    start();
+    for (Island island : islands)
+    {
+      PropagatorOptions islandOptions = options.copy();
+      islandOptions.resamplingRandom = null;
+      island.send(Command.INITIALIZE, modelFactoryClassName, islandOptions, random.nextLong(), random.nextLong());
+    }
+    int nGenerations = -1;
+    for (Island island : islands)
+    {
+      final int current = (Integer) island.receive();
+      if (nGenerations != -1 && current != nGenerations)
+        throw new RuntimeException("The model factory created different models in different workers");
+      nGenerations = current;
+    }
+    
+    double logZ = 0.0;
+    final double [] logWeights = new double[nIslands];
+    for (int t = 0; t < nGenerations; t++)
+    {
+      for (Island island : islands)
+        island.send(Command.PROPAGATE, t);
+      for (int i = 0; i < nIslands; i++)
+        logWeights[i] += (Double) islands[i].receive();
+      if (t < nGenerations - 1 && exchangeInterval > 0 && (t + 1) % exchangeInterval == 0)
+      {
+        logZ += logMeanExp(logWeights);
+        resampleIslands(logWeights);
+        Arrays.fill(logWeights, 0.0);
+      }
+    }
+    return logZ + logMeanExp(logWeights);
+  }
+  
+  private void resampleIslands(double [] logWeights)
+  {
+    final double logSum = logMeanExp(logWeights) + Math.log(nIslands);
+    final double [] weights = new double[nIslands];
+    for (int i = 0; i < nIslands; i++)
+      weights[i] = Math.exp(logWeights[i] - logSum);
+    final int [] offspringCounts = islandResamplingScheme.offspringCounts(random, weights, nIslands);
+    int target = 0;
+    for (int source = 0; source < nIslands; source++)
+    {
+      if (offspringCounts[source] <= 1)
+        continue;
+      islands[source].send(Command.GET_PARTICLES);
+      final Object particles = islands[source].receive();
+      for (int copy = 1; copy < offspringCounts[source]; copy++)
+      {
+        while (offspringCounts[target] != 0)
+          target++;
+        islands[target++].send(Command.SET_PARTICLES, particles);
+      }
+    }
+  }
+  
+  private static double logMeanExp(double [] logValues)
+  {
+    double max = Double.NEGATIVE_INFINITY;
+    for (double logValue : logValues)
+      max = Math.max(max, logValue);
+    if (max == Double.NEGATIVE_INFINITY)
+      return max;
+    double sum = 0.0;
+    for (double logValue : logValues)
+      sum += Math.exp(logValue - max);
+    return max + Math.log(sum / logValues.length);
+  }
+  
+  private void start()
+  {
+    if (islands != null)
+      return;
+    if (nIslands < 1)
+      throw new RuntimeException("At least one island is needed");
+    final Island [] connected = new Island[nIslands];
+    final String token = newToken();
+    final List<String> classPrefixes = classPrefixes();
+    try (ServerSocket server = new ServerSocket(0, nIslands, InetAddress.getLoopbackAddress()))
+    {
+      server.setSoTimeout(workerConnectionTimeoutMillis);
+      for (int i = 0; i < nIslands; i++)
+      {
+        Process process = new ProcessBuilder(workerCommand(server.getLocalPort(), i, classPrefixes))
+            .redirectInput(Redirect.PIPE)
+            .redirectOutput(Redirect.INHERIT)
+            .redirectError(Redirect.INHERIT)
+            .start();
+        processes.add(process);
+        try (Writer tokenWriter = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8))
+        {
+          tokenWriter.write(token + "\n");
+        }
+      }
+      int nConnected = 0;
+      while (nConnected < nIslands)
+      {
+        Socket socket = server.accept();
+        final int index;
+        final ObjectOutputStream out;
+        final ObjectInputStream in;
+        try
+        {
+          // do not wait forever for a peer which does not follow the protocol
+          socket.setSoTimeout(workerConnectionTimeoutMillis);
+          out = new ObjectOutputStream(socket.getOutputStream());
+          out.flush();
+          in = new ClassFilteringInputStream(socket.getInputStream(), classPrefixes);
+          index = in.readInt();
+          final String workerToken = in.readUTF();
+          if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), workerToken.getBytes(StandardCharsets.UTF_8)))
+            throw new IOException("Invalid token");
+          socket.setSoTimeout(0);
+        }
+        catch (IOException e)
+        {
+          // not one of our workers: ignore it
+          socket.close();
+          continue;
+        }
+        if (index < 0 || index >= nIslands || connected[index] != null)
+        {
+          socket.close();
+          throw new RuntimeException("Invalid or duplicated island index: " + index);
+        }
+        connected[index] = new Island(index, socket, out, in);
+        nConnected++;
+      }
+    }
+    catch (IOException | RuntimeException e)
+    {
+      islands = connected;
+      close();
+      throw new RuntimeException("Could not start the island workers", e);
+    }
+    islands = connected;
+  }
+  
+  private static String newToken()
+  {
+    final byte [] bytes = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder result = new StringBuilder();
+    for (byte b : bytes)
+      result.append(String.format("%02x", b));
+    return result.toString();
+  }
+  
+  /**
+   * @return The prefixes of the class names allowed, besides ClassFilteringInputStream.ALLOWED_CLASSES
+   */
+  private List<String> classPrefixes()
+  {
+    List<String> result = new ArrayList<>();
+    result.add("bayonet.");
+    final int lastDot = modelFactoryClassName.lastIndexOf('.');
+    if (lastDot > 0)
+      result.add(modelFactoryClassName.substring(0, lastDot + 1));
+    else
+      result.add(modelFactoryClassName);
+    for (String prefix : allowedClassPrefixes)
+      if (!prefix.isEmpty())
+        result.add(prefix);
+    return result;
+  }
+  
+  private List<String> workerCommand(int port, int index, List<String> classPrefixes)
+  {
+    List<String> result = new ArrayList<>();
+    result.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    result.addAll(workerJvmArguments);
+    result.add("-cp");
+    result.add(workerClassPath);
+    result.add(Worker.class.getName());
+    result.add("" + port);
+    result.add("" + index);
+    result.addAll(classPrefixes);
+    return result;
+  }
+  
+  /**
+   * Resolves only the classes needed by the protocol, and those matching the given 
+   * prefixes, so that a stream cannot instantiate arbitrary serializable classes.
+   */
+  static final class ClassFilteringInputStream extends ObjectInputStream
+  {
+    static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+        "java.lang.String", "java.lang.Number", "java.lang.Enum", "java.lang.Boolean", 
+        "java.lang.Byte", "java.lang.Character", "java.lang.Short", "java.lang.Integer", 
+        "java.lang.Long", "java.lang.Float", "java.lang.Double",
+        // failures reported by the workers
+        "java.lang.Throwable", "java.lang.Exception", "java.lang.RuntimeException", 
+        "java.lang.StackTraceElement", 
+        "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap", "java.util.HashSet", 
+        "java.util.Arrays$ArrayList", "java.util.Collections$EmptyList", 
+        "java.util.Collections$UnmodifiableCollection", "java.util.Collections$UnmodifiableList", 
+        "java.util.Collections$UnmodifiableRandomAccessList"));
+    
+    private final List<String> allowedPrefixes;
+    
+    ClassFilteringInputStream(InputStream in, List<String> allowedPrefixes) throws IOException
+    {
+      super(in);
+      this.allowedPrefixes = allowedPrefixes;
+    }
+    
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+    {
+      if (!isAllowed(desc.getName()))
+        throw new InvalidClassException(desc.getName(), "Not allowed by the island filter, see IslandFilter.allowedClassPrefixes");
+      return super.resolveClass(desc);
+    }
+    
+    @Override
+    protected Class<?> resolveProxyClass(String [] interfaces) throws IOException, ClassNotFoundException
+    {
+      throw new InvalidClassException("Proxy classes are not allowed by the island filter");
+    }
+    
+    private boolean isAllowed(String className)
+    {
+      if (className.startsWith("["))
+      {
+        // arrays of primitives, or of allowed classes
+        final String component = className.substring(className.lastIndexOf('[') + 1);
+        if (!component.startsWith("L"))
+          return true;
+        className = component.substring(1, component.length() - 1);
+      }
+      if (ALLOWED_CLASSES.contains(className))
+        return true;
+      for (String prefix : allowedPrefixes)
+        if (className.startsWith(prefix))
+          return true;
+      return false;
+    }
+  }
+
+  /**
+   * Stops the workers.
+   */
+  @Override
+  public void close()
+  {
+    if (islands != null)
+      for (Island island : islands)
+        if (island != null)
+          island.close();
+    for (Process process : processes)
+    {
+      try
+      {
+        if (!process.waitFor(10, TimeUnit.SECONDS))
+          process.destroyForcibly();
+      }
+      catch (InterruptedException e)
+      {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+    processes.clear();
+    islands = null;
+  }
+  
+  private static enum Command { INITIALIZE, PROPAGATE, GET_PARTICLES, SET_PARTICLES, SHUTDOWN }
+  
+  /**
+   * Coordinator side of the connection to one worker.
+   */
+  private static final class Island
+  {
+    private final int index;
+    private final Socket socket;
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    
+    private Island(int index, Socket socket, ObjectOutputStream out, ObjectInputStream in)
+    {
+      this.index = index;
+      this.socket = socket;
+      this.out = out;
+      this.in = in;
+    }
+    
+    private void send(Object ... messages)
+    {
+      try
+      {
+        for (Object message : messages)
+          out.writeObject(message);
+        out.flush();
+        // do not keep references to the messages sent
+        out.reset();
+      } 
+      catch (IOException e)
+      {
+        throw new RuntimeException("Lost connection with island " + index, e);
+      }
+    }
+    
+    private Object receive()
+    {
+      final Object result;
+      try
+      {
+        result = in.readObject();
+      } 
+      catch (IOException | ClassNotFoundException e)
+      {
+        throw new RuntimeException("Lost connection with island " + index, e);
+      }
+      if (result instanceof Throwable)
+        throw new RuntimeException("Island " + index + " failed", (Throwable) result);
+      return result;
+    }
+    
+    private void close()
+    {
+      try
+      {
+        if (!socket.isClosed())
+        {
+          send(Command.SHUTDOWN);
+          socket.close();
+        }
+      }
+      catch (Exception e)
+      {
+        // the worker is gone already
+      }
+    }
+  }
+  
+  /**
+   * Entry point of the worker JVMs: runs one island, as instructed by the coordinator.
+   */
+  public static final class Worker
+  {
+    private final ObjectInputStream in;
+    private final ObjectOutputStream out;
+    
+    private List<Object> emissions;
+    private StreamingBootstrapFilter<Object, Object> filter;
+    private List<Object> particles;
+    
+    private Worker(ObjectInputStream in, ObjectOutputStream out)
+    {
+      this.in = in;
+      this.out = out;
+    }
+    
+    /**
+     * The first line of the standard input is the token identifying the workers of 
+     * the coordinator.
+     * 
+     * @param args Port of the coordinator, index of the island, and prefixes of the 
+     *   classes allowed besides ClassFilteringInputStream.ALLOWED_CLASSES
+     */
+    public static void main(String [] args) throws IOException
+    {
+      final int port = Integer.parseInt(args[0]);
+      final int index = Integer.parseInt(args[1]);
+      final List<String> classPrefixes = Arrays.asList(args).subList(2, args.length);
+      final String token = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+      if (token == null)
+        throw new IOException("Expected the token of the coordinator on the standard input");
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+      {
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        out.writeInt(index);
+        out.writeUTF(token);
+        out.flush();
+        ObjectInputStream in = new ClassFilteringInputStream(socket.getInputStream(), classPrefixes);
+        new Worker(in, out).run();
+      }
+    }
+    
+    private void run() throws IOException
+    {
+      while (true)
+      {
+        try
+        {
+          final Command command = (Command) in.readObject();
+          switch (command)
+          {
+            case INITIALIZE    : initialize(); break;
+            case PROPAGATE     : propagate(); break;
+            case GET_PARTICLES : reply(new ArrayList<>(particles)); break;
+            case SET_PARTICLES : particles = readParticles(); break;
+            case SHUTDOWN      : return;
+          }
+        }
+        catch (IOException e)
+        {
+          // connection with the coordinator lost
+          throw e;
+        }
+        catch (Exception e)
+        {
+          // the exception (or its cause) may not be serializable
+          StringWriter stackTrace = new StringWriter();
+          e.printStackTrace(new PrintWriter(stackTrace));
+          reply(new RuntimeException(stackTrace.toString()));
+          return;
+        }
+      }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void initialize() throws Exception
+    {
+      final String className = (String) in.readObject();
+      final PropagatorOptions options = (PropagatorOptions) in.readObject();
+      final long seed = (Long) in.readObject();
+      final long resamplingSeed = (Long) in.readObject();
+      ModelFactory<Object, Object> factory = Class.forName(className).asSubclass(ModelFactory.class).getDeclaredConstructor().newInstance();
+      emissions = factory.emissions();
+      filter = new StreamingBootstrapFilter<>(factory.latentSimulator(), factory.observationDensity(), emissions, new Random(seed));
+      options.resamplingRandom = new Random(resamplingSeed);
+      filter.options = options;
+      particles = null;
+      reply(emissions.size());
+    }
+    
+    private void propagate() throws Exception
+    {
+      final int generation = (Integer) in.readObject();
+      if ((generation == 0) != (particles == null))
+        throw new RuntimeException("Unexpected generation " + generation);
+      PropagationResult<Object> result = filter.propagate(particles, emissions.get(generation));
+      particles = result.samples;
+      reply(result.population.logZEstimate());
+    }
+    
+    @SuppressWarnings("unchecked")
+    private List<Object> readParticles() throws Exception
+    {
+      return (List<Object>) in.readObject();
+    }
+    
+    private void reply(Object message) throws IOException
+    {
+      out.writeObject(message);
+      out.flush();
+      out.reset();
+    }
+  }
+}
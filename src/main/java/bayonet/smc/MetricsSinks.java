@@ -0,0 +1,108 @@
+package bayonet.smc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Map.Entry;
+
+
+
+/**
+ * Ready-made PropagationListener writing one line per generation, either as CSV 
+ * (with a header) or as JSON lines. Each line is flushed, so the output can be 
+ * followed while the sampler runs. Columns are those of PropagationMetrics.toMap(), 
+ * preceded by the index of the generation (as seen by the sink).
+ */
+public final class MetricsSinks
+{
+  /**
+   * @param out Closed when the sink is closed
+   */
+  public static Sink csv(Writer out)
+  {
+    return new Sink(out, false);
+  }
+  
+  /**
+   * @param out Closed when the sink is closed
+   */
+  public static Sink jsonLines(Writer out)
+  {
+    return new Sink(out, true);
+  }
+  
+  public static final class Sink implements PropagationListener, Closeable
+  {
+    private final Writer out;
+    private final boolean json;
+    private long generation = 0;
+    
+    private Sink(Writer out, boolean json)
+    {
+      this.out = out;
+      this.json = json;
+    }
+
+    @Override
+    public synchronized void propagationCompleted(PropagationMetrics metrics)
+    {
+      final Map<String, Object> values = metrics.toMap();
+      final StringBuilder line = new StringBuilder();
+      if (json)
+      {
+        line.append("{\"generation\":").append(generation);
+        for (Entry<String, Object> entry : values.entrySet())
+          line.append(",\"").append(entry.getKey()).append("\":").append(toJson(entry.getValue()));
+        line.append('}');
+      }
+      else
+      {
+        if (generation == 0)
+        {
+          line.append("generation");
+          for (String key : values.keySet())
+            line.append(',').append(key);
+          line.append('\n');
+        }
+        line.append(generation);
+        for (Object value : values.values())
+          line.append(',').append(value == null ? "" : value);
+      }
+      line.append('\n');
+      generation++;
+      try
+      {
+        out.write(line.toString());
+        out.flush();
+      } 
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    
+    private static String toJson(Object value)
+    {
+      if (value == null)
+        return "null";
+      if (value instanceof Double)
+      {
+        final double number = (Double) value;
+        // NaN and infinities are not valid JSON numbers
+        return Double.isNaN(number) || Double.isInfinite(number) ? "null" : value.toString();
+      }
+      if (value instanceof Number)
+        return value.toString();
+      return "\"" + value + "\"";
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      out.close();
+    }
+  }
+  
+  private MetricsSinks() {}
+}
@@ -0,0 +1,60 @@
+package bayonet.smc;
+
+import java.nio.ByteBuffer;
+
+
+
+/**
+ * Fixed-width binary representation of particles, used by ParticleStore.
+ * 
+ * Implementations should only use the absolute get/put methods of the buffer 
+ * (which do not modify its position), between offset (inclusive) and 
+ * offset + byteSize() (exclusive).
+ * 
+ * @param <P>
+ */
+public interface ParticleCodec<P>
+{
+  /**
+   * @return The number of bytes used by each particle.
+   */
+  public int byteSize();
+  
+  public void encode(P particle, ByteBuffer buffer, int offset);
+  
+  public P decode(ByteBuffer buffer, int offset);
+  
+  /**
+   * @param dimension
+   * @return A codec for double arrays of the given length.
+   */
+  public static ParticleCodec<double[]> doubleArray(final int dimension)
+  {
+    return new ParticleCodec<double[]>() 
+    {
+      @Override
+      public int byteSize()
+      {
+        return Double.BYTES * dimension;
+      }
+
+      @Override
+      public void encode(double[] particle, ByteBuffer buffer, int offset)
+      {
+        if (particle.length != dimension)
+          throw new RuntimeException("Expected a particle of dimension " + dimension + ", got " + particle.length);
+        for (int d = 0; d < dimension; d++)
+          buffer.putDouble(offset + Double.BYTES * d, particle[d]);
+      }
+
+      @Override
+      public double[] decode(ByteBuffer buffer, int offset)
+      {
+        final double [] result = new double[dimension];
+        for (int d = 0; d < dimension; d++)
+          result[d] = buffer.getDouble(offset + Double.BYTES * d);
+        return result;
+      }
+    };
+  }
+}
@@ -1,15 +1,20 @@
 package bayonet.smc;
 
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.RandomAccess;
 import java.util.stream.DoubleStream;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+
 import bayonet.distributions.ExhaustiveDebugRandom;
 import bayonet.distributions.Multinomial;
-import bayonet.smc.ResamplingScheme.ResampledContext;
 
 
 
@@ -18,7 +23,12 @@ public final class ParticlePopulation<P> implements Serializable
   private static final long serialVersionUID = 1L;
   
   public final List<P> particles;
+  
+  /**
+   * A read-only view of ancestorIndices (null if the ancestors are not tracked).
+   */
   public final List<Integer> ancestors;
+  private final int [] ancestorIndices;
   private final double [] normalizedWeights;
   
   /**
@@ -56,7 +66,7 @@ public final class ParticlePopulation<P> implements Serializable
     if (logWeights.length != particles.size())
       throw new RuntimeException("Dimensionality of weights should match the dim of particles");
     double logWeightsScaling = Multinomial.expNormalize(logWeights);
-    return new ParticlePopulation<>(particles, ancestors, logWeights, logScaling + logWeightsScaling);
+    return new ParticlePopulation<>(particles, toArray(ancestors), logWeights, logScaling + logWeightsScaling);
   }
   
   public static <P> ParticlePopulation<P> buildEquallyWeighted(
@@ -64,20 +74,35 @@ public final class ParticlePopulation<P> implements Serializable
       final List<Integer> ancestors,
       final double logScaling)
   {
-    return new ParticlePopulation<>(particles, ancestors, null, logScaling);
+    return new ParticlePopulation<>(particles, toArray(ancestors), null, logScaling);
   }
   
   private ParticlePopulation(
       final List<P> particles, 
-      final List<Integer> ancestors,
+      final int [] ancestorIndices,
       final double[] normalizedWeights,
       final double logScaling)
   {
-    this.ancestors = ancestors;
+    this.ancestorIndices = ancestorIndices;
+    this.ancestors = ancestorIndices == null ? null : Collections.unmodifiableList(Ints.asList(ancestorIndices));
     this.particles = particles;
     this.normalizedWeights = normalizedWeights;
     this.logScaling = logScaling;
   }
+  
+  private static int [] toArray(List<Integer> ancestors)
+  {
+    return ancestors == null ? null : Ints.toArray(ancestors);
+  }
+  
+  /**
+   * @param particleIndex
+   * @return The index of the ancestor of the given particle in the previous population.
+   */
+  public int getAncestor(final int particleIndex)
+  {
+    return ancestorIndices[particleIndex];
+  }
 
   public double [] getLogWeights()
   {
@@ -97,7 +122,7 @@ public final class ParticlePopulation<P> implements Serializable
     return normalizedWeights[index];
   }
   
-  private boolean equallyWeighted()
+  boolean equallyWeighted()
   {
     return normalizedWeights == null;
   }
@@ -120,10 +145,19 @@ public final class ParticlePopulation<P> implements Serializable
     return logScaling - Math.log(nParticles());
   }
   
+  /**
+   * Note: the resampled population does not copy the particles list element 
+   * by element: it is a view over a snapshot of this population's list, indexed 
+   * by the (primitive) ancestor indices. The snapshot is shared when resampling 
+   * repeatedly (or skipped when the list is an ImmutableList), so modifying 
+   * either list afterwards does not affect the other. A private copy is made 
+   * only when the resampled list is modified (copy-on-write). 
+   */
   public ParticlePopulation<P> resample(
       final Random random, 
       final ResamplingScheme resamplingScheme)
   {
+    final int [] ancestorIndices;
     if (random instanceof ExhaustiveDebugRandom)
     {
       // If we're using an ExhaustiveDebugRandom, use only discrete random generation
@@ -131,21 +165,98 @@ public final class ParticlePopulation<P> implements Serializable
       double [] prs = new double[nParticles()];
       for (int i = 0; i < nParticles(); i++)
         prs[i] = getNormalizedWeight(i);
-      List<P> resampled = new ArrayList<>();
-      List<Integer> ancestors = new ArrayList<>();
-      for (int i = 0; i < nParticles(); i++) {
-        int particleIdx = debugRandom.nextCategorical(prs);
-        ancestors.add(particleIdx);
-        resampled.add(particles.get(particleIdx));
-      }
-      return ParticlePopulation.buildEquallyWeighted(resampled, ancestors, logScaling);
+      ancestorIndices = new int[nParticles()];
+      for (int i = 0; i < nParticles(); i++) 
+        ancestorIndices[i] = debugRandom.nextCategorical(prs);
     }
     else
     {
-      ResampledContext<P> resampledContext = resamplingScheme.resample(random, normalizedWeights, particles);
-      final List<P> resampled = resampledContext.particles;
-      final List<Integer> ancestors = resampledContext.ancestors;
-      return ParticlePopulation.buildEquallyWeighted(resampled, ancestors, logScaling);
+      double [] w = normalizedWeights;
+      if (equallyWeighted())
+      {
+        w = new double[nParticles()];
+        Arrays.fill(w, 1.0 / nParticles());
+      }
+      ancestorIndices = resamplingScheme.resampleAncestors(random, w, nParticles());
+    }
+    final List<P> resampled = ResampledList.of(particles, ancestorIndices);
+    return new ParticlePopulation<>(resampled, ancestorIndices, null, logScaling);
+  }
+  
+  /**
+   * View of particles.get(ancestorIndices[i]), copied on first write. The source 
+   * is never modified, nor referenced outside of ResampledList.
+   */
+  private static final class ResampledList<P> extends AbstractList<P> implements RandomAccess, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private List<P> source;
+    private int [] indices;
+    private ArrayList<P> copy = null;
+    
+    private static <P> List<P> of(List<P> particles, int [] ancestorIndices)
+    {
+      if (particles instanceof ResampledList && ((ResampledList<P>) particles).copy == null)
+      {
+        // avoid chains of views when resampling repeatedly
+        ResampledList<P> previous = (ResampledList<P>) particles;
+        int [] composed = new int[ancestorIndices.length];
+        for (int i = 0; i < ancestorIndices.length; i++)
+          composed[i] = previous.indices[ancestorIndices[i]];
+        return new ResampledList<>(previous.source, composed);
+      }
+      final List<P> snapshot = particles instanceof ImmutableList ? particles : new ArrayList<>(particles);
+      return new ResampledList<>(snapshot, ancestorIndices);
+    }
+    
+    private ResampledList(List<P> source, int [] indices)
+    {
+      this.source = source;
+      this.indices = indices;
+    }
+
+    @Override
+    public P get(int index)
+    {
+      return copy == null ? source.get(indices[index]) : copy.get(index);
+    }
+
+    @Override
+    public int size()
+    {
+      return copy == null ? indices.length : copy.size();
+    }
+    
+    @Override
+    public P set(int index, P element)
+    {
+      return copy().set(index, element);
+    }
+    
+    @Override
+    public void add(int index, P element)
+    {
+      copy().add(index, element);
+    }
+    
+    @Override
+    public P remove(int index)
+    {
+      return copy().remove(index);
+    }
+    
+    private ArrayList<P> copy()
+    {
+      if (copy == null)
+      {
+        copy = new ArrayList<>(indices.length);
+        for (int index : indices)
+          copy.add(source.get(index));
+        source = null;
+        indices = null;
+      }
+      return copy;
     }
   }
 
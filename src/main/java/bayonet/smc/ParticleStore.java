@@ -0,0 +1,419 @@
+package bayonet.smc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+
+
+
+/**
+ * A fixed number of particles and their log weights, stored outside of the Java heap, 
+ * either in direct ByteBuffers (offHeap()) or in a memory-mapped file (memoryMapped()).
+ * Particles are converted from and to objects only when get() and set() are called:
+ * weight normalization, resampling and ancestor gathering operate on the raw bytes.
+ * 
+ * Each particle occupies one fixed-width record, a log weight followed by the bytes 
+ * of the ParticleCodec (padded to a multiple of 8 bytes). Records are spread over 
+ * several buffers, each under the 2GB limit of ByteBuffer. Log weights are 
+ * initially zero (equal weights).
+ * 
+ * Only absolute accesses to the buffers are made, so distinct particles can be read 
+ * and written from different threads.
+ * 
+ * @param <P>
+ */
+public final class ParticleStore<P> implements AutoCloseable
+{
+  private final ParticleCodec<P> codec;
+  private final int nParticles;
+  private final int recordSize;
+  private final int particlesPerChunk;
+  private final ByteBuffer [] chunks;
+  private final FileChannel channel;
+  
+  /**
+   * Number of times the store was (re)filled by a StreamingPropagator, so that the
+   * views of earlier samples can detect they were overwritten.
+   */
+  private volatile long generation = 0;
+  
+  private static final int STATE_OFFSET = Double.BYTES;
+  
+  /**
+   * @param codec
+   * @param nParticles
+   * @return A store backed by direct (off-heap) buffers.
+   */
+  public static <P> ParticleStore<P> offHeap(ParticleCodec<P> codec, int nParticles)
+  {
+    return new ParticleStore<>(codec, nParticles, null, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * @param codec
+   * @param nParticles
+   * @param file Created if needed, and resized to fit the particles
+   * @return A store backed by a memory-mapped file, which should be closed after use.
+   */
+  public static <P> ParticleStore<P> memoryMapped(ParticleCodec<P> codec, int nParticles, Path file)
+  {
+    final FileChannel channel;
+    try
+    {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } 
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    try
+    {
+      return new ParticleStore<>(codec, nParticles, channel, Integer.MAX_VALUE);
+    }
+    catch (RuntimeException e)
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException closeFailure)
+      {
+        e.addSuppressed(closeFailure);
+      }
+      throw e;
+    }
+  }
+  
+  /**
+   * @param maxChunkBytes Maximum size of each buffer (exposed for testing)
+   */
+  ParticleStore(ParticleCodec<P> codec, int nParticles, FileChannel channel, int maxChunkBytes)
+  {
+    if (nParticles < 0)
+      throw new RuntimeException("Invalid number of particles: " + nParticles);
+    this.codec = codec;
+    this.nParticles = nParticles;
+    this.recordSize = STATE_OFFSET + roundUpToLong(codec.byteSize());
+    this.particlesPerChunk = maxChunkBytes / recordSize;
+    if (particlesPerChunk == 0)
+      throw new RuntimeException("Particles too large: " + codec.byteSize() + " bytes");
+    this.channel = channel;
+    final int nChunks = (nParticles + particlesPerChunk - 1) / particlesPerChunk;
+    this.chunks = new ByteBuffer[nChunks];
+    try
+    {
+      if (channel != null)
+        channel.truncate((long) nParticles * recordSize);
+      for (int c = 0; c < nChunks; c++)
+      {
+        final int chunkBytes = Math.min(particlesPerChunk, nParticles - c * particlesPerChunk) * recordSize;
+        final ByteBuffer chunk = channel == null ? 
+            ByteBuffer.allocateDirect(chunkBytes) : 
+            channel.map(MapMode.READ_WRITE, (long) c * particlesPerChunk * recordSize, chunkBytes);
+        chunks[c] = chunk.order(ByteOrder.nativeOrder());
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  private static int roundUpToLong(int nBytes)
+  {
+    return ((nBytes + Long.BYTES - 1) / Long.BYTES) * Long.BYTES;
+  }
+  
+  public int nParticles()
+  {
+    return nParticles;
+  }
+  
+  public ParticleCodec<P> codec()
+  {
+    return codec;
+  }
+  
+  /**
+   * Marks the start of a new use of the store, see StreamingPropagator.setSampleStore().
+   * 
+   * @return The new generation
+   */
+  long startGeneration()
+  {
+    return ++generation;
+  }
+  
+  long generation()
+  {
+    return generation;
+  }
+  
+  /**
+   * @param index
+   * @return A newly decoded copy of the particle.
+   */
+  public P get(int index)
+  {
+    return codec.decode(chunk(index), offset(index) + STATE_OFFSET);
+  }
+  
+  public void set(int index, P particle)
+  {
+    codec.encode(particle, chunk(index), offset(index) + STATE_OFFSET);
+  }
+  
+  /**
+   * Reads a double inside the encoded particle, without decoding it.
+   * 
+   * @param index Index of the particle
+   * @param byteOffset Position of the value within the codec's representation
+   */
+  public double getDouble(int index, int byteOffset)
+  {
+    return chunk(index).getDouble(offset(index) + STATE_OFFSET + checkOffset(byteOffset, Double.BYTES));
+  }
+  
+  public void putDouble(int index, int byteOffset, double value)
+  {
+    chunk(index).putDouble(offset(index) + STATE_OFFSET + checkOffset(byteOffset, Double.BYTES), value);
+  }
+  
+  public int getInt(int index, int byteOffset)
+  {
+    return chunk(index).getInt(offset(index) + STATE_OFFSET + checkOffset(byteOffset, Integer.BYTES));
+  }
+  
+  public void putInt(int index, int byteOffset, int value)
+  {
+    chunk(index).putInt(offset(index) + STATE_OFFSET + checkOffset(byteOffset, Integer.BYTES), value);
+  }
+  
+  private int checkOffset(int byteOffset, int width)
+  {
+    if (byteOffset < 0 || byteOffset + width > codec.byteSize())
+      throw new IndexOutOfBoundsException("Offset " + byteOffset + " outside of a particle of " + codec.byteSize() + " bytes");
+    return byteOffset;
+  }
+  
+  public double getLogWeight(int index)
+  {
+    return chunk(index).getDouble(offset(index));
+  }
+  
+  public void setLogWeight(int index, double logWeight)
+  {
+    chunk(index).putDouble(offset(index), logWeight);
+  }
+  
+  /**
+   * Set all log weights to zero.
+   */
+  public void resetWeights()
+  {
+    for (int i = 0; i < nParticles; i++)
+      setLogWeight(i, 0.0);
+  }
+  
+  /**
+   * @return LOG of the sum of the weights
+   */
+  public double logSumOfWeights()
+  {
+    final double max = maxLogWeight();
+    if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+      return max;
+    double sum = 0.0;
+    for (int i = 0; i < nParticles; i++)
+      sum += Math.exp(getLogWeight(i) - max);
+    return max + Math.log(sum);
+  }
+  
+  /**
+   * Subtract the LOG sum of the weights from each log weight, so that the weights sum to one.
+   * 
+   * @return The LOG sum of the weights before normalization
+   */
+  public double normalizeWeights()
+  {
+    final double logSum = checkLogSum();
+    for (int i = 0; i < nParticles; i++)
+      setLogWeight(i, getLogWeight(i) - logSum);
+    return logSum;
+  }
+  
+  /**
+   * @return The effective sample size of the weights
+   */
+  public double ess()
+  {
+    final double max = maxLogWeight();
+    double sum = 0.0, sumOfSquares = 0.0;
+    for (int i = 0; i < nParticles; i++)
+    {
+      final double w = Math.exp(getLogWeight(i) - max);
+      sum += w;
+      sumOfSquares += w * w;
+    }
+    return sum * sum / sumOfSquares;
+  }
+  
+  /**
+   * @return The normalized weights (the particles are not decoded)
+   */
+  public double [] normalizedWeights()
+  {
+    final double logSum = checkLogSum();
+    final double [] result = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+      result[i] = Math.exp(getLogWeight(i) - logSum);
+    return result;
+  }
+  
+  private double checkLogSum()
+  {
+    final double logSum = logSumOfWeights();
+    if (logSum == Double.NEGATIVE_INFINITY || Double.isNaN(logSum) || logSum == Double.POSITIVE_INFINITY)
+      throw new RuntimeException("The weights cannot be normalized: log sum is " + logSum);
+    return logSum;
+  }
+  
+  private double maxLogWeight()
+  {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < nParticles; i++)
+      max = Math.max(max, getLogWeight(i));
+    return max;
+  }
+  
+  /**
+   * @param random
+   * @param resamplingScheme
+   * @param nSamples
+   * @return The ancestor of each of the nSamples resampled particles, in ascending order.
+   */
+  public int [] resampleAncestors(Random random, ResamplingScheme resamplingScheme, int nSamples)
+  {
+    return resamplingScheme.resampleAncestors(random, normalizedWeights(), nSamples);
+  }
+  
+  /**
+   * Resample the particles of this store into destination (which should be a 
+   * different store, with the same codec), whose weights are then reset.
+   * 
+   * @return The LOG sum of the weights of this store (the log normalization 
+   *   of this generation, as ParticlePopulation.logScaling)
+   */
+  public double resample(Random random, ResamplingScheme resamplingScheme, ParticleStore<P> destination)
+  {
+    final double logSum = checkLogSum();
+    gather(resampleAncestors(random, resamplingScheme, destination.nParticles), destination);
+    destination.resetWeights();
+    return logSum;
+  }
+  
+  /**
+   * Copy the raw record (particle and log weight) of particle ancestors[i] of this 
+   * store into particle i of destination, for each i.
+   * 
+   * @param ancestors Indices in this store, of length destination.nParticles()
+   * @param destination A different store, with the same codec
+   */
+  public void gather(int [] ancestors, ParticleStore<P> destination)
+  {
+    if (destination == this)
+      throw new RuntimeException("Gathering in place is not supported, use a second store");
+    if (destination.recordSize != recordSize || destination.codec.byteSize() != codec.byteSize())
+      throw new RuntimeException("Incompatible particle stores");
+    if (ancestors.length != destination.nParticles)
+      throw new RuntimeException("Expected " + destination.nParticles + " ancestors, got " + ancestors.length);
+    for (int i = 0; i < ancestors.length; i++)
+    {
+      final ByteBuffer source = chunk(ancestors[i]);
+      final int sourceOffset = offset(ancestors[i]);
+      final ByteBuffer target = destination.chunk(i);
+      final int targetOffset = destination.offset(i);
+      for (int b = 0; b < recordSize; b += Long.BYTES)
+        target.putLong(targetOffset + b, source.getLong(sourceOffset + b));
+    }
+  }
+  
+  /**
+   * @return A view of the particles, decoding on get() and encoding on set().
+   */
+  public List<P> asList()
+  {
+    return new ListView();
+  }
+  
+  private final class ListView extends AbstractList<P> implements RandomAccess
+  {
+    @Override
+    public P get(int index)
+    {
+      return ParticleStore.this.get(index);
+    }
+
+    @Override
+    public P set(int index, P element)
+    {
+      P previous = ParticleStore.this.get(index);
+      ParticleStore.this.set(index, element);
+      return previous;
+    }
+
+    @Override
+    public int size()
+    {
+      return nParticles;
+    }
+  }
+  
+  private ByteBuffer chunk(int index)
+  {
+    if (index < 0 || index >= nParticles)
+      throw new IndexOutOfBoundsException("Particle " + index + " of " + nParticles);
+    final ByteBuffer chunk = chunks[index / particlesPerChunk];
+    if (chunk == null)
+      throw new RuntimeException("The store was closed");
+    return chunk;
+  }
+  
+  private int offset(int index)
+  {
+    return (index % particlesPerChunk) * recordSize;
+  }
+
+  /**
+   * Drops the references to the buffers, and closes the file of a memory-mapped 
+   * store. The store cannot be accessed afterwards. 
+   * 
+   * Note that Java 8 has no public way to unmap a file: the mappings (like the 
+   * memory of off-heap stores) are only released when the garbage collector 
+   * reclaims the buffers.
+   */
+  @Override
+  public void close()
+  {
+    Arrays.fill(chunks, null);
+    if (channel == null)
+      return;
+    try
+    {
+      channel.close();
+    } 
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -1,8 +1,5 @@
 package bayonet.smc;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.Random;
 
 
@@ -10,6 +7,9 @@ import java.util.Random;
  * Walks through a permutation of a given size s, and after providing
  * s permuted indices, reshuffle the permutation and keep walking on 
  * the newly permuted indices, and so on.
+ * 
+ * The shuffling is done incrementally (one Fisher-Yates swap per call
+ * to popIndex()), on a primitive array.
  *  
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
  *
@@ -17,30 +17,28 @@ import java.util.Random;
 public class PermutationStream
 {
   private int nCalls = 0;
-  private final List<Integer> indices;
+  private final int [] indices;
   private final Random random;
   private final int size;
   
   public PermutationStream(int size, Random random)
   {
     this.random = random;
-    this.indices = new ArrayList<>();
+    this.indices = new int[size];
     this.size = size;
     for (int i = 0; i < size(); i++)
-      indices.add(i);
+      indices[i] = i;
   }
   
   public int popIndex()
   {
-    final int index = nCalls++ % size();
-    if (index == 0)
-      reshuffle();
-    return indices.get(index);
-  }
-  
-  private void reshuffle()
-  {
-    Collections.shuffle(indices, random);
+    final int position = nCalls++ % size();
+    // swap a uniformly chosen index among the ones not yet provided in this cycle
+    final int chosen = position + random.nextInt(size() - position);
+    final int result = indices[chosen];
+    indices[chosen] = indices[position];
+    indices[position] = result;
+    return result;
   }
 
   public final int size()
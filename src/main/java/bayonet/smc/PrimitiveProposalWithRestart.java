@@ -0,0 +1,36 @@
+package bayonet.smc;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+
+
+/**
+ * A ProposalWithRestart for which nextLogWeight() does not need to 
+ * allocate a (boxed) pair. The sample is only requested, via lastSample(), 
+ * when StreamingPropagator replays the particles surviving resampling. 
+ * 
+ * The same determinism requirements as in ProposalWithRestart apply. 
+ * 
+ * @param <S>
+ */
+public interface PrimitiveProposalWithRestart<S> extends ProposalWithRestart<S>
+{
+  /**
+   * @return LOG unnormalized weight
+   */
+  @Override
+  public double nextLogWeight();
+  
+  /**
+   * @return The particle created by the last call to nextLogWeight() (or 
+   *   nextLogWeightSamplePair())
+   */
+  public S lastSample();
+  
+  @Override
+  default public Pair<Double, S> nextLogWeightSamplePair()
+  {
+    final double logWeight = nextLogWeight();
+    return Pair.of(logWeight, lastSample());
+  }
+}
@@ -0,0 +1,23 @@
+package bayonet.smc;
+
+
+
+/**
+ * Receives the metrics of each call to StreamingPropagator.execute() (i.e. of each 
+ * generation of a streaming filter), see PropagatorOptions.listener. Called on the 
+ * thread calling execute(), after resampling.
+ */
+@FunctionalInterface
+public interface PropagationListener
+{
+  public void propagationCompleted(PropagationMetrics metrics);
+  
+  default public PropagationListener andThen(PropagationListener after)
+  {
+    return metrics -> 
+    {
+      propagationCompleted(metrics);
+      after.propagationCompleted(metrics);
+    };
+  }
+}
@@ -0,0 +1,130 @@
+package bayonet.smc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bayonet.smc.StreamingPropagator.PropagationMode;
+import bayonet.smc.StreamingPropagator.StopReason;
+
+
+
+/**
+ * Measurements made during one call to StreamingPropagator.execute(), reported to 
+ * the PropagationListener of the options (if any). Durations are wall-clock, in 
+ * nanoseconds.
+ */
+public final class PropagationMetrics
+{
+  /**
+   * REPLAY or RESERVOIR (AUTO is resolved).
+   */
+  public final PropagationMode mode;
+  
+  public final int nThreads;
+  
+  public final int nVirtualParticles;
+  
+  public final int nConcreteParticles;
+  
+  /**
+   * ESS of the virtual particles, divided by nConcreteParticles.
+   */
+  public final double relativeESS;
+  
+  /**
+   * Estimate of the log incremental normalization, CompactPopulation.logZEstimate().
+   */
+  public final double logZIncrement;
+  
+  public final StopReason stopReason;
+  
+  /**
+   * Time spent growing the virtual population.
+   */
+  public final long proposeNanos;
+  
+  /**
+   * Time spent instantiating the concrete particles (replay, or reading the reservoirs).
+   */
+  public final long resampleNanos;
+  
+  /**
+   * Number of proposal calls made during replay (zero in RESERVOIR mode).
+   */
+  public final long nReplayedCalls;
+  
+  /**
+   * Among the nReplayedCalls, those made after the last surviving particle of their 
+   * block, only to check that the proposal behaves deterministically.
+   */
+  public final long nSanityCheckCalls;
+  
+  /**
+   * Time spent on the nSanityCheckCalls.
+   */
+  public final long sanityCheckNanos;
+
+  PropagationMetrics(
+      PropagationMode mode, 
+      int nThreads, 
+      int nVirtualParticles, 
+      int nConcreteParticles, 
+      double relativeESS,
+      double logZIncrement, 
+      StopReason stopReason, 
+      long proposeNanos, 
+      long resampleNanos, 
+      long nReplayedCalls,
+      long nSanityCheckCalls, 
+      long sanityCheckNanos)
+  {
+    this.mode = mode;
+    this.nThreads = nThreads;
+    this.nVirtualParticles = nVirtualParticles;
+    this.nConcreteParticles = nConcreteParticles;
+    this.relativeESS = relativeESS;
+    this.logZIncrement = logZIncrement;
+    this.stopReason = stopReason;
+    this.proposeNanos = proposeNanos;
+    this.resampleNanos = resampleNanos;
+    this.nReplayedCalls = nReplayedCalls;
+    this.nSanityCheckCalls = nSanityCheckCalls;
+    this.sanityCheckNanos = sanityCheckNanos;
+  }
+  
+  /**
+   * @return Throughput of the proposal while growing the virtual population.
+   */
+  public double proposalCallsPerSecond()
+  {
+    return nVirtualParticles / (proposeNanos * 1e-9);
+  }
+  
+  /**
+   * @return The metrics, by name, in a fixed order (used by the sinks).
+   */
+  public Map<String, Object> toMap()
+  {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("mode", mode);
+    result.put("nThreads", nThreads);
+    result.put("nVirtualParticles", nVirtualParticles);
+    result.put("nConcreteParticles", nConcreteParticles);
+    result.put("relativeESS", relativeESS);
+    result.put("logZIncrement", logZIncrement);
+    result.put("stopReason", stopReason);
+    result.put("proposeNanos", proposeNanos);
+    result.put("resampleNanos", resampleNanos);
+    result.put("proposalCallsPerSecond", proposalCallsPerSecond());
+    result.put("nReplayedCalls", nReplayedCalls);
+    result.put("nSanityCheckCalls", nSanityCheckCalls);
+    result.put("sanityCheckNanos", sanityCheckNanos);
+    return result;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return toMap().toString();
+  }
+}
@@ -46,4 +46,28 @@ public interface ProposalWithRestart<S>
    */
   public ProposalWithRestart<S> restart();
   
+  /**
+   * Optional operation, needed to grow the virtual population in parallel 
+   * (see PropagatorOptions.nThreads).
+   * 
+   * @param streamIndex
+   * @return A new instance, with numberOfCalls() equal to zero, whose randomness is seeded
+   *   independently for each streamIndex, but deterministically given this proposal and
+   *   streamIndex (so that calling subStream(i) twice yields the same sequence).
+   */
+  default public ProposalWithRestart<S> subStream(int streamIndex)
+  {
+    throw new UnsupportedOperationException("This proposal does not support sub-streams, use nThreads = 1");
+  }
+  
+  /**
+   * Called by StreamingPropagator once it no longer calls next..() on this instance 
+   * (restart() and subStream() may still be called). Proposals computing ahead of 
+   * the calls, e.g. starting simulations before they are requested, should cancel 
+   * that work here.
+   */
+  default public void cancelPending()
+  {
+  }
+  
 }
\ No newline at end of file
@@ -1,12 +1,9 @@
 package bayonet.smc;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
-import com.google.common.primitives.Doubles;
-
 import bayonet.distributions.Uniform;
 import bayonet.math.NumericalUtils;
 
@@ -41,22 +38,154 @@ public enum ResamplingScheme
     @Override
     public double[] getSortedCumulativeProbabilities(Random rand, int nDarts)
     {
-      // Note: uses an n log(n) algo. Linear is possible using normalized exponentials,
-      // but constant is larger than the sorting-based algorithm.
-      List<Double> darts = new ArrayList<>(nDarts);
+      // Linear time algorithm: the normalized partial sums of nDarts + 1 exponential 
+      // random variables are distributed as nDarts sorted uniforms.
+      final double [] result = new double[nDarts];
+      double sum = 0.0;
       for (int i = 0; i < nDarts; i++)
-        darts.add(rand.nextDouble());
-      Collections.sort(darts);
-      return Doubles.toArray(darts);
+      {
+        sum += nextExponential(rand);
+        result[i] = sum;
+      }
+      sum += nextExponential(rand);
+      for (int i = 0; i < nDarts; i++)
+        result[i] /= sum;
+      return result;
+    }
+  },
+  /**
+   * A single uniform shift shared by all the darts, which are equally spaced.
+   * 
+   * See http://biblio.telecom-paristech.fr/cgi-bin/download.cgi?id=5755
+   */
+  SYSTEMATIC {
+    @Override
+    public double [] getSortedCumulativeProbabilities(Random rand, int nDarts)
+    {
+      final double [] result = new double[nDarts];
+      final double spacing = 1.0/((double) nDarts);
+      final double positionInBin = Uniform.generate(rand, 0.0, spacing);
+      for (int i = 0; i < nDarts; i++)
+        result[i] = spacing * i + positionInBin;
+      return result;
+    }
+  },
+  /**
+   * Each particle i first gets floor(n w[i]) deterministic copies, then the remaining 
+   * darts are thrown multinomially according to the residual weights.
+   * 
+   * Since the location of the darts depends on the weights, this scheme is not
+   * available in the streaming setting (see StreamingPropagator), only via 
+   * resample() or getSortedCumulativeProbabilities(Random, double[], int).
+   * 
+   * See http://biblio.telecom-paristech.fr/cgi-bin/download.cgi?id=5755
+   */
+  RESIDUAL {
+    @Override
+    public double [] getSortedCumulativeProbabilities(Random rand, int nDarts)
+    {
+      throw new UnsupportedOperationException("Residual resampling requires the weights to be known before throwing the darts");
+    }
+    
+    @Override
+    public double [] getSortedCumulativeProbabilities(Random rand, double [] w, int nDarts)
+    {
+      // deterministic part
+      final int [] offspringCounts = new int[w.length];
+      final double [] residuals = new double[w.length];
+      int nResidualDarts = nDarts;
+      for (int i = 0; i < w.length; i++)
+      {
+        final double expected = nDarts * w[i];
+        offspringCounts[i] = (int) expected;
+        residuals[i] = expected - offspringCounts[i];
+        nResidualDarts -= offspringCounts[i];
+      }
+      // numerical round-off can give too many deterministic copies when the weights sum to slightly more than one
+      while (nResidualDarts < 0)
+      {
+        offspringCounts[argMax(offspringCounts)]--;
+        nResidualDarts++;
+      }
+      
+      // random part
+      if (nResidualDarts > 0)
+      {
+        final double [] residualDarts = MULTINOMIAL.getSortedCumulativeProbabilities(rand, nResidualDarts);
+        final double residualSum = nResidualDarts;
+        double sum = 0.0;
+        int nxtDartIdx = 0;
+        for (int i = 0; i < w.length && nxtDartIdx < nResidualDarts; i++)
+        {
+          sum += residuals[i] / residualSum;
+          while (nxtDartIdx < nResidualDarts && residualDarts[nxtDartIdx] < sum)
+          {
+            offspringCounts[i]++;
+            nxtDartIdx++;
+          }
+        }
+        // numerical round-off
+        offspringCounts[lastPositive(w)] += nResidualDarts - nxtDartIdx;
+      }
+      
+      // place the darts inside the subinterval of each particle
+      final double [] result = new double[nDarts];
+      double sum = 0.0;
+      int nxtDartIdx = 0;
+      for (int i = 0; i < w.length; i++)
+      {
+        final int count = offspringCounts[i];
+        for (int j = 0; j < count; j++)
+          result[nxtDartIdx++] = sum + w[i] * (j + 1) / (count + 1);
+        sum += w[i];
+      }
+      return result;
     }
   };
   
+  private static double nextExponential(Random rand)
+  {
+    return -Math.log(1.0 - rand.nextDouble());
+  }
+  
+  private static int argMax(int [] counts)
+  {
+    int result = 0;
+    for (int i = 1; i < counts.length; i++)
+      if (counts[i] > counts[result])
+        result = i;
+    return result;
+  }
+  
+  private static int lastPositive(double [] w)
+  {
+    for (int i = w.length - 1; i >= 0; i--)
+      if (w[i] > 0.0)
+        return i;
+    throw new RuntimeException("At least one weight should be positive");
+  }
+  
   /**
    * @param rand
    * @param nDarts
    * @return The location of the n darts, sorted in ascending order.
    */
   public abstract double[] getSortedCumulativeProbabilities(Random rand, int nDarts);
+  
+  /**
+   * Same as getSortedCumulativeProbabilities(Random, int), for schemes where the location 
+   * of the darts depends on the (normalized) weights w.
+   * 
+   * @param rand
+   * @param w
+   * @param nDarts
+   * @return The location of the n darts, sorted in ascending order.
+   */
+  public double[] getSortedCumulativeProbabilities(Random rand, double [] w, int nDarts)
+  {
+    return getSortedCumulativeProbabilities(rand, nDarts);
+  }
+  
   public class ResampledContext<T> {
     List<T> particles;
     List<Integer> ancestors;
@@ -76,9 +205,47 @@ public enum ResamplingScheme
       final List<T> particles, 
       final int nSamples)
   {
-    final double [] darts = getSortedCumulativeProbabilities(rand, nSamples); 
+    final int [] ancestorIndices = resampleAncestors(rand, w, nSamples);
     final List<T> result = new ArrayList<>(nSamples);
     final List<Integer> ancestors = new ArrayList<Integer>(nSamples);
+    for (int ancestor : ancestorIndices)
+    {
+      result.add(particles.get(ancestor));
+      ancestors.add(ancestor);
+    }
+    ResampledContext<T> resampledContext = new ResampledContext<T>();
+    resampledContext.particles = result;
+    resampledContext.ancestors = ancestors;
+    return resampledContext;
+  }
+  
+  /**
+   * @param rand
+   * @param w The normalized weights
+   * @param nSamples
+   * @return The ancestor of each of the nSamples resampled particles, in ascending order.
+   */
+  public int [] resampleAncestors(
+      final Random rand, 
+      final double [] w, 
+      final int nSamples)
+  {
+    return ancestors(offspringCounts(rand, w, nSamples));
+  }
+  
+  /**
+   * @param rand
+   * @param w The normalized weights
+   * @param nSamples
+   * @return The number of times each particle is resampled (summing to nSamples).
+   */
+  public int [] offspringCounts(
+      final Random rand, 
+      final double [] w, 
+      final int nSamples)
+  {
+    final double [] darts = getSortedCumulativeProbabilities(rand, w, nSamples); 
+    final int [] result = new int[w.length];
     double sum = 0.0;
     int nxtDartIdx = 0;
     for (int i = 0; i < w.length; i++)
@@ -87,26 +254,35 @@ public enum ResamplingScheme
       if (curLen < 0 - NumericalUtils.THRESHOLD)
         throw new RuntimeException();
       final double right = sum + curLen;
-      
-      innerLoop : for (int dartIdx = nxtDartIdx; dartIdx < darts.length; dartIdx++)
-        if (darts[dartIdx] < right)
-        {
-          result.add(particles.get(i)); //result.incrementCount(i, 1.0);
-          ancestors.add(i);
-          nxtDartIdx++;
-        }
-        else 
-          break innerLoop;
+      while (nxtDartIdx < darts.length && darts[nxtDartIdx] < right)
+      {
+        result[i]++;
+        nxtDartIdx++;
+      }
       sum = right;
     }
     if (Double.isNaN(sum))
       throw new RuntimeException();
     NumericalUtils.checkIsClose(1.0, sum);
-    if (result.size() != nSamples)
+    if (nxtDartIdx != nSamples)
       throw new RuntimeException();
-    ResampledContext<T> resampledContext = new ResampledContext<T>();
-    resampledContext.particles = result;
-    resampledContext.ancestors = ancestors;
-    return resampledContext;
+    return result;
+  }
+  
+  /**
+   * @param offspringCounts
+   * @return The ancestor indices, where index i is repeated offspringCounts[i] times.
+   */
+  public static int [] ancestors(final int [] offspringCounts)
+  {
+    int nSamples = 0;
+    for (int count : offspringCounts)
+      nSamples += count;
+    final int [] result = new int[nSamples];
+    int current = 0;
+    for (int i = 0; i < offspringCounts.length; i++)
+      for (int j = 0; j < offspringCounts[i]; j++)
+        result[current++] = i;
+    return result;
   }
-}
\ No newline at end of file
+}
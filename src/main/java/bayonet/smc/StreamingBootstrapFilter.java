@@ -1,12 +1,18 @@
 package bayonet.smc;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
-
-import org.apache.commons.lang3.tuple.Pair;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import bayonet.smc.StreamingPropagator.PropagatorOptions;
 import bayonet.smc.StreamingPropagator.PropagationResult;
+import bayonet.smc.StreamingPropagator.StopReason;
 
 
 /**
@@ -27,17 +33,69 @@ public class StreamingBootstrapFilter<L,E>
 {
   private final List<E> emissions;
   private final LatentSimulator<L> transitionDensity;
+  private final AsyncLatentSimulator<L> asyncSimulator;
   private final ObservationDensity<L,E> observationDensity;
-  private final Random mainRandom = new Random(1);
+  private final Random mainRandom;
   
   public StreamingBootstrapFilter(
       LatentSimulator<L> transitionDensity,
       ObservationDensity<L, E> observationDensity,
       List<E> emissions)
   {
+    this(transitionDensity, observationDensity, emissions, new Random(1));
+  }
+  
+  /**
+   * @param mainRandom Source of the seeds used by the proposals of each generation 
+   *   (resampling uses options.resamplingRandom)
+   */
+  public StreamingBootstrapFilter(
+      LatentSimulator<L> transitionDensity,
+      ObservationDensity<L, E> observationDensity,
+      List<E> emissions,
+      Random mainRandom)
+  {
+    this(transitionDensity, null, observationDensity, emissions, mainRandom);
+  }
+  
+  /**
+   * @param asyncSimulator Called with a seed derived from mainRandom and the index of 
+   *   each call, with up to maxSimulationsInFlight calls pending per proposal
+   */
+  public StreamingBootstrapFilter(
+      AsyncLatentSimulator<L> asyncSimulator,
+      ObservationDensity<L, E> observationDensity,
+      List<E> emissions,
+      Random mainRandom)
+  {
+    this(null, asyncSimulator, observationDensity, emissions, mainRandom);
+  }
+  
+  private StreamingBootstrapFilter(
+      LatentSimulator<L> transitionDensity,
+      AsyncLatentSimulator<L> asyncSimulator,
+      ObservationDensity<L, E> observationDensity,
+      List<E> emissions,
+      Random mainRandom)
+  {
+    if ((transitionDensity == null) == (asyncSimulator == null))
+      throw new RuntimeException("Exactly one of the synchronous and asynchronous simulators should be given");
     this.emissions = emissions;
     this.transitionDensity = transitionDensity;
+    this.asyncSimulator = asyncSimulator;
     this.observationDensity = observationDensity;
+    this.mainRandom = mainRandom;
+  }
+
+  /**
+   * For the online mode only (see online()).
+   */
+  public StreamingBootstrapFilter(
+      LatentSimulator<L> transitionDensity,
+      ObservationDensity<L, E> observationDensity,
+      Random mainRandom)
+  {
+    this(transitionDensity, observationDensity, Collections.<E>emptyList(), mainRandom);
   }
 
   public PropagatorOptions options = new PropagatorOptions();
@@ -47,38 +105,353 @@ public class StreamingBootstrapFilter<L,E>
     public L sampleInitial(Random random);
     public L sampleForwardTransition(Random random, L state);
   }
+  
+  /**
+   * Simulator returning futures, for expensive simulators (e.g. external processes or 
+   * services), so that many simulations can be pending at once. Each call receives 
+   * its own seed, and should be a deterministic function of its arguments: this 
+   * makes the replay of the streaming proposals reproducible whatever the order in 
+   * which the simulations complete. The futures of the simulations started ahead but 
+   * no longer needed are cancelled.
+   */
+  public static interface AsyncLatentSimulator<L>
+  {
+    public CompletableFuture<L> sampleInitial(long seed);
+    public CompletableFuture<L> sampleForwardTransition(long seed, L state);
+    
+    /**
+     * @param simulator A blocking simulator
+     * @param executor Runs the blocking calls, and hence bounds their concurrency. It is 
+     *   owned by the caller, who shuts it down once the simulator is no longer used.
+     * @return An asynchronous simulator calling the given one with new Random(seed)
+     */
+    public static <L> AsyncLatentSimulator<L> fromBlocking(LatentSimulator<L> simulator, Executor executor)
+    {
+      return new AsyncLatentSimulator<L>() 
+      {
+        @Override
+        public CompletableFuture<L> sampleInitial(long seed)
+        {
+          return CompletableFuture.supplyAsync(() -> simulator.sampleInitial(new Random(seed)), executor);
+        }
+
+        @Override
+        public CompletableFuture<L> sampleForwardTransition(long seed, L state)
+        {
+          return CompletableFuture.supplyAsync(() -> simulator.sampleForwardTransition(new Random(seed), state), executor);
+        }
+      };
+    }
+  }
+  
+  /**
+   * Maximum number of pending calls to the AsyncLatentSimulator, per proposal (the 
+   * proposals of the blocks of a parallel propagator run concurrently). Up to that 
+   * many simulations are started ahead, and the ones still pending are cancelled at 
+   * the end of each pass of a proposal; PropagationMode.RESERVOIR avoids the second 
+   * (replay) pass.
+   */
+  public int maxSimulationsInFlight = 64;
   public static interface ObservationDensity<L,E>
   {
     public double logDensity(L latent, E emission);
   }
   
+  /**
+   * Optional batched version of ObservationDensity. When the observation density 
+   * implements it, the proposals simulate blocks of observationBatchSize latent 
+   * states, and score each block with one call, whose inner loop the JIT can 
+   * then optimize (e.g. vectorize) as a whole. The random numbers are consumed in 
+   * the same order, so the results match those of the unbatched density.
+   */
+  public static interface BatchObservationDensity<L,E> extends ObservationDensity<L,E>
+  {
+    /**
+     * @param latents
+     * @param emission
+     * @param logDensities Receives logDensity(latents.get(i), emission) at index i 
+     *   (its length may exceed the number of latents)
+     */
+    public void logDensities(List<L> latents, E emission, double [] logDensities);
+  }
+  
+  /**
+   * Number of latent states scored at once when the observation density is a 
+   * BatchObservationDensity.
+   */
+  public int observationBatchSize = 256;
+  
+  /**
+   * If true, a full streaming cycle (virtual particles, resampling and replay) is performed 
+   * only when the relative ESS of the concrete particles drops below adaptiveResamplingThreshold.
+   * In the other generations, each concrete particle is propagated once and its 
+   * weight is carried forward.
+   */
+  public boolean adaptiveResampling = false;
+  
+  public double adaptiveResamplingThreshold = 0.5;
+  
+  /**
+   * If positive, each streaming generation aims at taking about that many milliseconds: 
+   * its maxNumberOfVirtualParticles is lowered (never below numberOfConcreteParticles) 
+   * to what the wall-clock cost per virtual particle observed in the previous streaming 
+   * generation affords. It is also used as a hard deadline for the growth of the 
+   * virtual population, in place of options.timeBudgetMillis when the latter is zero or 
+   * larger, in which case the generation stops with StopReason.WALL_CLOCK_BUDGET.
+   * 
+   * The deadline only covers the growth (the proposal phase). In REPLAY mode, the 
+   * replay of the blocks holding surviving particles comes on top, and may take up to 
+   * about as long again; the cost per virtual particle used for the cap does include 
+   * it. Use PropagationMode.RESERVOIR when the whole generation should fit the budget.
+   */
+  public long generationTimeBudgetMillis = 0;
+  
   /**
    * @return The estimate for log(Z)
    */
   public double sample()
   {
-    // initial distribution
-    StreamingBootstrapProposal proposal = getInitialDistributionProposal();
-    StreamingPropagator<L> propagator = new StreamingPropagator<L>(proposal, options);
-    PropagationResult<L> propResults = propagator.execute();
-    double logZ = propResults.population.logZEstimate();
+    double logZ = 0.0;
+    Iterator<GenerationResult<L>> generations = online(emissions.iterator());
+    while (generations.hasNext())
+      logZ = generations.next().logZ;
+    return logZ;
+  }
+  
+  /**
+   * Online mode: the returned iterator performs one generation per call to next(), 
+   * pulling the next emission from the given iterator (so hasNext() may block if 
+   * the emissions do). 
+   * 
+   * Only the current population is kept, so memory stays O(numberOfConcreteParticles) 
+   * however long the stream, and the work of each generation is bounded by the 
+   * options (maxNumberOfVirtualParticles, timeBudgetMillis, cpuTimeBudgetMillis, see 
+   * also generationTimeBudgetMillis), not by the number of generations performed so far.
+   * 
+   * @param emissions Possibly unbounded
+   * @return The result of each generation
+   */
+  public Iterator<GenerationResult<L>> online(Iterator<E> emissions)
+  {
+    return new OnlineFilter(emissions);
+  }
+  
+  /**
+   * Summary of one generation of the online mode.
+   */
+  public static class GenerationResult<L>
+  {
+    /**
+     * Index of the generation (0 for the first emission).
+     */
+    public final long generation;
+    
+    /**
+     * Estimate of the log of the incremental normalization, log(p(y_t|y_{1:t-1})).
+     */
+    public final double logZIncrement;
+    
+    /**
+     * Estimate of the log normalization of all the emissions so far.
+     */
+    public final double logZ;
+    
+    /**
+     * ESS of the particles on which the estimate of this generation is based (virtual 
+     * particles for streaming generations, concrete particles otherwise).
+     */
+    public final double ess;
+    
+    /**
+     * Number of calls to the simulator in this generation.
+     */
+    public final int nProposed;
+    
+    /**
+     * Why the virtual population stopped growing, or null if the concrete particles 
+     * were propagated without resampling (see adaptiveResampling).
+     */
+    public final StopReason stopReason;
+    
+    /**
+     * Wall-clock duration of the generation, in nanoseconds.
+     */
+    public final long latencyNanos;
     
-    // recursion
-    for (int i = 1; i < emissions.size(); i++)
+    /**
+     * The (possibly weighted) concrete particles at the end of the generation.
+     */
+    public final ParticlePopulation<L> population;
+
+    private GenerationResult(long generation, double logZIncrement, double logZ, double ess, int nProposed, 
+        StopReason stopReason, long latencyNanos, ParticlePopulation<L> population)
     {
-      proposal = new StreamingBootstrapProposal(mainRandom.nextLong(), emissions.get(i), propResults.samples);
-      propagator = new StreamingPropagator<>(proposal, options);
-      propResults = propagator.execute();
-      logZ += propResults.population.logZEstimate();
+      this.generation = generation;
+      this.logZIncrement = logZIncrement;
+      this.logZ = logZ;
+      this.ess = ess;
+      this.nProposed = nProposed;
+      this.stopReason = stopReason;
+      this.latencyNanos = latencyNanos;
+      this.population = population;
     }
-    return logZ;
   }
   
-  private StreamingBootstrapProposal getInitialDistributionProposal()
+  private class OnlineFilter implements Iterator<GenerationResult<L>>
   {
-    return new StreamingBootstrapProposal(mainRandom.nextLong(), emissions.get(0), null);
-  }
+    private final Iterator<E> emissions;
+    private ParticlePopulation<L> population = null;
+    private double logZ = 0.0;
+    private double nanosPerVirtualParticle = Double.NaN;
+    private long generation = 0;
+    
+    private OnlineFilter(Iterator<E> emissions)
+    {
+      this.emissions = emissions;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return emissions.hasNext();
+    }
 
+    @Override
+    public GenerationResult<L> next()
+    {
+      final E emission = emissions.next();
+      final long start = System.nanoTime();
+      final double logZIncrement, ess;
+      final int nProposed;
+      final StopReason stopReason;
+      if (population != null && adaptiveResampling && population.getRelativeESS() >= adaptiveResamplingThreshold)
+      {
+        ParticlePopulation<L> propagated = propagateWithoutResampling(population, emission);
+        logZIncrement = propagated.logScaling - population.logScaling;
+        ess = propagated.getESS();
+        nProposed = propagated.nParticles();
+        stopReason = null;
+        population = propagated;
+      }
+      else
+      {
+        StreamingBootstrapProposal proposal = population == null ? 
+            new StreamingBootstrapProposal(mainRandom.nextLong(), emission, null, null) :
+            new StreamingBootstrapProposal(mainRandom.nextLong(), emission, population.particles, logWeightCorrections(population));
+        StreamingPropagator<L> propagator = new StreamingPropagator<>(proposal, generationOptions(nanosPerVirtualParticle));
+        PropagationResult<L> propResults = propagator.execute();
+        nanosPerVirtualParticle = propResults.nanosPerVirtualParticle();
+        logZIncrement = propResults.population.logZEstimate();
+        ess = propResults.population.ess();
+        nProposed = propResults.population.getNumberOfParticles();
+        stopReason = propResults.stopReason;
+        population = ParticlePopulation.buildEquallyWeighted(propResults.samples, null, 0.0);
+      }
+      logZ += logZIncrement;
+      return new GenerationResult<>(generation++, logZIncrement, logZ, ess, nProposed, stopReason, System.nanoTime() - start, population);
+    }
+  }
+  
+  /**
+   * Performs a single streaming generation, for callers driving the sequence of 
+   * generations themselves (see for example IslandFilter).
+   * 
+   * @param particles The equally weighted particles of the previous generation, or 
+   *   null for the initial generation
+   * @param emission The observation of this generation
+   * @return The propagation result, where population.logZEstimate() is the estimate of 
+   *   the log incremental normalization
+   */
+  public PropagationResult<L> propagate(List<L> particles, E emission)
+  {
+    StreamingBootstrapProposal proposal = new StreamingBootstrapProposal(mainRandom.nextLong(), emission, particles, null);
+    return new StreamingPropagator<>(proposal, options).execute();
+  }
+  
+  /**
+   * @return The options of the next streaming generation, see generationTimeBudgetMillis
+   */
+  private PropagatorOptions generationOptions(double nanosPerVirtualParticle)
+  {
+    if (generationTimeBudgetMillis <= 0)
+      return options;
+    PropagatorOptions result = options.copy();
+    if (options.timeBudgetMillis <= 0 || options.timeBudgetMillis > generationTimeBudgetMillis)
+      result.timeBudgetMillis = generationTimeBudgetMillis;
+    if (!Double.isNaN(nanosPerVirtualParticle))
+    {
+      final double affordable = generationTimeBudgetMillis * 1e6 / nanosPerVirtualParticle;
+      result.maxNumberOfVirtualParticles = (int) Math.max(
+          options.numberOfConcreteParticles, 
+          Math.min(options.maxNumberOfVirtualParticles, affordable));
+    }
+    return result;
+  }
+  
+  /**
+   * Propagate each particle once, multiplying its weight by the observation density.
+   */
+  private ParticlePopulation<L> propagateWithoutResampling(ParticlePopulation<L> population, E emission)
+  {
+    final long seed = mainRandom.nextLong();
+    final int nParticles = population.nParticles();
+    final List<L> propagated = new ArrayList<>(nParticles);
+    if (asyncSimulator == null)
+    {
+      final Random random = new Random(seed);
+      for (int i = 0; i < nParticles; i++)
+        propagated.add(transitionDensity.sampleForwardTransition(random, population.particles.get(i)));
+    }
+    else
+    {
+      // keep at most maxSimulationsInFlight pending calls
+      final ArrayDeque<CompletableFuture<L>> pending = new ArrayDeque<>();
+      int nStarted = 0;
+      try
+      {
+        for (int i = 0; i < nParticles; i++)
+        {
+          while (nStarted < nParticles && nStarted - i < Math.max(1, maxSimulationsInFlight))
+          {
+            pending.add(asyncSimulator.sampleForwardTransition(callSeed(seed, nStarted), population.particles.get(nStarted)));
+            nStarted++;
+          }
+          propagated.add(await(pending.poll()));
+        }
+      }
+      finally
+      {
+        // only non-empty when a simulation failed
+        for (CompletableFuture<L> future : pending)
+          future.cancel(true);
+      }
+    }
+    final double [] logWeights = new double[nParticles];
+    if (observationDensity instanceof BatchObservationDensity)
+      ((BatchObservationDensity<L,E>) observationDensity).logDensities(propagated, emission, logWeights);
+    else
+      for (int i = 0; i < nParticles; i++)
+        logWeights[i] = observationDensity.logDensity(propagated.get(i), emission);
+    for (int i = 0; i < nParticles; i++)
+      logWeights[i] = Math.log(population.getNormalizedWeight(i)) + logWeights[i];
+    return ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, propagated, null, population.logScaling);
+  }
+  
+  /**
+   * @return For each particle i, log(n w[i]) where w are the normalized weights, 
+   *   or null if the population is equally weighted.
+   */
+  private static double [] logWeightCorrections(ParticlePopulation<?> population)
+  {
+    if (population.equallyWeighted())
+      return null;
+    final int nParticles = population.nParticles();
+    final double [] result = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+      result[i] = Math.log(nParticles * population.getNormalizedWeight(i));
+    return result;
+  }
+  
   /**
    * Adapt the more abstract machinery of the lazy proposal/propagator to the
    *  simpler bootstrap filter case.
@@ -89,7 +462,7 @@ public class StreamingBootstrapFilter<L,E>
    * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
    *
    */
-  private class StreamingBootstrapProposal implements ProposalWithRestart<L>
+  private class StreamingBootstrapProposal implements PrimitiveProposalWithRestart<L>
   {
     private final long seed;
     private final PermutationStream permutationStream;
@@ -97,28 +470,141 @@ public class StreamingBootstrapFilter<L,E>
     
     private final E curEmission;
     private final List<L> oldLatents;
+    
+    /**
+     * Added to the log weights when the old latents are not equally weighted (null otherwise).
+     */
+    private final double [] oldLogWeightCorrections;
     private int nCalls = 0;
+    private L lastSample = null;
+    
+    /**
+     * Latent states simulated ahead, with their log weights (when the observation density
+     * is a BatchObservationDensity, null otherwise).
+     */
+    private final BatchObservationDensity<L,E> batchDensity;
+    private final List<L> latentBuffer;
+    private final double [] logWeightBuffer, logDensityBuffer;
+    private int bufferPosition = 0;
+    
+    /**
+     * Calls to the asyncSimulator started ahead, in the order of the proposals (empty 
+     * when the simulator is synchronous).
+     */
+    private final ArrayDeque<PendingSimulation> pendingSimulations = new ArrayDeque<>();
+    private long nSimulationsStarted = 0;
 
-    private StreamingBootstrapProposal(long seed, E curEmission, List<L> oldLatents)
+    private StreamingBootstrapProposal(long seed, E curEmission, List<L> oldLatents, double [] oldLogWeightCorrections)
     {
       this.seed = seed;
       this.curEmission = curEmission;
       this.oldLatents = oldLatents;
+      this.oldLogWeightCorrections = oldLogWeightCorrections;
       this.random = new Random(seed * 171);
       this.permutationStream = oldLatents == null ? null : new PermutationStream(oldLatents.size(), random);
+      this.batchDensity = observationDensity instanceof BatchObservationDensity ? 
+          (BatchObservationDensity<L,E>) observationDensity : 
+          null;
+      final int batchSize = Math.max(1, observationBatchSize);
+      this.latentBuffer = batchDensity == null ? null : new ArrayList<>(batchSize);
+      this.logWeightBuffer = batchDensity == null ? null : new double[batchSize];
+      this.logDensityBuffer = batchDensity == null ? null : new double[batchSize];
     }
 
     @Override
-    public Pair<Double, L> nextLogWeightSamplePair()
+    public double nextLogWeight()
+    {
+      if (batchDensity != null)
+      {
+        if (bufferPosition == latentBuffer.size())
+          fillBuffer();
+        nCalls++;
+        lastSample = latentBuffer.get(bufferPosition);
+        return logWeightBuffer[bufferPosition++];
+      }
+      final double logWeight = simulate() + observationDensity.logDensity(lastSample, curEmission);
+      nCalls++;
+      return logWeight;
+    }
+    
+    /**
+     * Simulates the next latent state, stored in lastSample.
+     * 
+     * @return The weight correction of its ancestor (see oldLogWeightCorrections)
+     */
+    private double simulate()
     {
       // terminology: old means the SMC generation before current (null if we are doing initial)
       //              cur means the current SMC generation
-      L curLatent = isInitial() 
-          ? transitionDensity.sampleInitial(random)
-          : transitionDensity.sampleForwardTransition(random, sampleOldLatent());
-      double logWeight = observationDensity.logDensity(curLatent, curEmission);
-      nCalls++;
-      return Pair.of(logWeight, curLatent);
+      if (asyncSimulator != null)
+      {
+        while (pendingSimulations.size() < Math.max(1, maxSimulationsInFlight))
+          startSimulation();
+        final PendingSimulation next = pendingSimulations.poll();
+        lastSample = await(next.latent);
+        return next.logWeightCorrection;
+      }
+      double logWeight = 0.0;
+      if (isInitial())
+        lastSample = transitionDensity.sampleInitial(random);
+      else
+      {
+        final int oldIndex = permutationStream.popIndex();
+        lastSample = transitionDensity.sampleForwardTransition(random, oldLatents.get(oldIndex));
+        if (oldLogWeightCorrections != null)
+          logWeight = oldLogWeightCorrections[oldIndex];
+      }
+      return logWeight;
+    }
+    
+    /**
+     * Draws the ancestor of the next simulation and starts it, with a seed depending 
+     * only on the proposal seed and the index of the call. 
+     */
+    private void startSimulation()
+    {
+      final long callSeed = callSeed(seed, nSimulationsStarted++);
+      if (isInitial())
+        pendingSimulations.add(new PendingSimulation(asyncSimulator.sampleInitial(callSeed), 0.0));
+      else
+      {
+        final int oldIndex = permutationStream.popIndex();
+        pendingSimulations.add(new PendingSimulation(
+            asyncSimulator.sampleForwardTransition(callSeed, oldLatents.get(oldIndex)), 
+            oldLogWeightCorrections == null ? 0.0 : oldLogWeightCorrections[oldIndex]));
+      }
+    }
+    
+    private void fillBuffer()
+    {
+      latentBuffer.clear();
+      for (int i = 0; i < logWeightBuffer.length; i++)
+      {
+        logWeightBuffer[i] = simulate();
+        latentBuffer.add(lastSample);
+      }
+      batchDensity.logDensities(latentBuffer, curEmission, logDensityBuffer);
+      for (int i = 0; i < logWeightBuffer.length; i++)
+        logWeightBuffer[i] += logDensityBuffer[i];
+      bufferPosition = 0;
+    }
+    
+    @Override
+    public L lastSample()
+    {
+      return lastSample;
+    }
+    
+    /**
+     * Cancel the simulations started ahead: the propagator stops calling this proposal 
+     * at the end of the growth (or of a block, or of the replay), or when a simulation failed.
+     */
+    @Override
+    public void cancelPending()
+    {
+      for (PendingSimulation pending : pendingSimulations)
+        pending.latent.cancel(true);
+      pendingSimulations.clear();
     }
     
     private boolean isInitial() 
@@ -126,11 +612,6 @@ public class StreamingBootstrapFilter<L,E>
       return oldLatents == null; 
     }
 
-    private L sampleOldLatent()
-    {
-      return oldLatents.get(permutationStream.popIndex());
-    }
-
     @Override
     public int numberOfCalls()
     {
@@ -140,7 +621,60 @@ public class StreamingBootstrapFilter<L,E>
     @Override
     public ProposalWithRestart<L> restart()
     {
-      return new StreamingBootstrapProposal(seed, curEmission, oldLatents);
+      return new StreamingBootstrapProposal(seed, curEmission, oldLatents, oldLogWeightCorrections);
+    }
+
+    @Override
+    public ProposalWithRestart<L> subStream(int streamIndex)
+    {
+      return new StreamingBootstrapProposal(subStreamSeed(seed, streamIndex), curEmission, oldLatents, oldLogWeightCorrections);
     }
   }
+  
+  private class PendingSimulation
+  {
+    private final CompletableFuture<L> latent;
+    private final double logWeightCorrection;
+    
+    private PendingSimulation(CompletableFuture<L> latent, double logWeightCorrection)
+    {
+      this.latent = latent;
+      this.logWeightCorrection = logWeightCorrection;
+    }
+  }
+  
+  private static <T> T await(CompletableFuture<T> future)
+  {
+    try
+    {
+      return future.join();
+    }
+    catch (CompletionException e)
+    {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+  
+  /**
+   * Seed of the call of the given index to the asyncSimulator, kept apart from the 
+   * seeds of the sub-streams.
+   */
+  private static long callSeed(long seed, long callIndex)
+  {
+    return subStreamSeed(seed ^ 0x5DEECE66DL, callIndex);
+  }
+  
+  /**
+   * Derives the seed of a sub-stream by scrambling the parent seed and the stream index
+   * (using the SplitMix64 finalizer), so that neighbouring streams are not correlated.
+   */
+  private static long subStreamSeed(long seed, long streamIndex)
+  {
+    long z = seed + (streamIndex + 1L) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
 }
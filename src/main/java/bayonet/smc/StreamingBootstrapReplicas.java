@@ -0,0 +1,180 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+
+import bayonet.distributions.Random;
+import bayonet.math.NumericalUtils;
+import bayonet.smc.StreamingBootstrapFilter.LatentSimulator;
+import bayonet.smc.StreamingBootstrapFilter.ObservationDensity;
+import bayonet.smc.StreamingPropagator.PropagatorOptions;
+
+
+
+/**
+ * Runs independent replicas of a StreamingBootstrapFilter concurrently, 
+ * for example to assess the variance of log(Z) estimates for model comparison.
+ * 
+ * Each replica gets its own random stream (see Random.parallelRandomStreams()),
+ * used both for its proposals and for its resampling, so the results only 
+ * depend on the seeder, not on the number of threads.
+ * 
+ * The LatentSimulator and ObservationDensity are shared by the replicas, 
+ * and should therefore be thread safe.
+ *
+ * @param <L> type for latent states
+ * @param <E> type for observations
+ */
+public class StreamingBootstrapReplicas<L,E>
+{
+  private final LatentSimulator<L> transitionDensity;
+  private final ObservationDensity<L,E> observationDensity;
+  private final List<E> emissions;
+  
+  /**
+   * Copied for each replica, except for the listener (see replicaListeners).
+   */
+  public PropagatorOptions options = new PropagatorOptions();
+  
+  /**
+   * If non-null, called with the index of each replica to create the listener of its 
+   * generations, e.g. one MetricsSinks per replica. A single options.listener is not 
+   * allowed: the generations of concurrent replicas would be interleaved.
+   */
+  public IntFunction<PropagationListener> replicaListeners = null;
+  
+  public StreamingBootstrapReplicas(
+      LatentSimulator<L> transitionDensity,
+      ObservationDensity<L, E> observationDensity,
+      List<E> emissions)
+  {
+    this.transitionDensity = transitionDensity;
+    this.observationDensity = observationDensity;
+    this.emissions = emissions;
+  }
+  
+  /**
+   * @param seeder
+   * @param nReplicas At least two are needed for the standard errors of ReplicaEstimates
+   * @param nThreads
+   * @return The estimates of each replica, in a deterministic order.
+   */
+  public ReplicaEstimates run(Random seeder, int nReplicas, int nThreads)
+  {
+    if (options.listener != null)
+      throw new RuntimeException("The replicas cannot share options.listener, use replicaListeners");
+    final Random [] randoms = Random.parallelRandomStreams(seeder, nReplicas);
+    final ForkJoinPool pool = new ForkJoinPool(nThreads);
+    try
+    {
+      List<ForkJoinTask<Double>> replicas = new ArrayList<>(nReplicas);
+      for (int r = 0; r < nReplicas; r++)
+      {
+        final Random random = randoms[r];
+        final PropagatorOptions replicaOptions = options.copy();
+        replicaOptions.resamplingRandom = new Random(random.nextLong());
+        if (replicaListeners != null)
+          replicaOptions.listener = replicaListeners.apply(r);
+        replicas.add(pool.submit(() -> 
+        {
+          StreamingBootstrapFilter<L, E> filter = new StreamingBootstrapFilter<>(transitionDensity, observationDensity, emissions, random);
+          filter.options = replicaOptions;
+          return filter.sample();
+        }));
+      }
+      double [] logZEstimates = new double[nReplicas];
+      for (int r = 0; r < nReplicas; r++)
+        logZEstimates[r] = replicas.get(r).join();
+      return new ReplicaEstimates(logZEstimates);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+  
+  public static class ReplicaEstimates
+  {
+    /**
+     * The log(Z) estimate of each replica.
+     */
+    public final double [] logZEstimates;
+    
+    public ReplicaEstimates(double [] logZEstimates)
+    {
+      this.logZEstimates = logZEstimates;
+    }
+    
+    public int nReplicas()
+    {
+      return logZEstimates.length;
+    }
+    
+    /**
+     * @return Average of the log(Z) estimates (biased for log(Z), but often less variable)
+     */
+    public double meanLogZ()
+    {
+      double sum = 0.0;
+      for (double logZ : logZEstimates)
+        sum += logZ;
+      return sum / nReplicas();
+    }
+    
+    /**
+     * @return Standard error of meanLogZ()
+     * @throws RuntimeException if there are less than two replicas
+     */
+    public double meanLogZStandardError()
+    {
+      checkCanEstimateStandardError();
+      final double mean = meanLogZ();
+      double sumOfSquares = 0.0;
+      for (double logZ : logZEstimates)
+        sumOfSquares += (logZ - mean) * (logZ - mean);
+      return Math.sqrt(sumOfSquares / (nReplicas() - 1) / nReplicas());
+    }
+    
+    /**
+     * @return log of the average of the Z estimates, i.e. the logarithm of the pooled 
+     *   (unbiased) estimator of Z
+     */
+    public double logMeanExp()
+    {
+      return NumericalUtils.logAdd(logZEstimates) - Math.log(nReplicas());
+    }
+    
+    /**
+     * @return Standard error of logMeanExp(), using the delta method, i.e. the 
+     *   standard error of the average of the Z estimates divided by that average.
+     * @throws RuntimeException if there are less than two replicas
+     */
+    public double logMeanExpStandardError()
+    {
+      checkCanEstimateStandardError();
+      double max = Double.NEGATIVE_INFINITY;
+      for (double logZ : logZEstimates)
+        max = Math.max(max, logZ);
+      double sum = 0.0;
+      for (double logZ : logZEstimates)
+        sum += Math.exp(logZ - max);
+      final double mean = sum / nReplicas();
+      double sumOfSquares = 0.0;
+      for (double logZ : logZEstimates)
+      {
+        final double difference = Math.exp(logZ - max) - mean;
+        sumOfSquares += difference * difference;
+      }
+      return Math.sqrt(sumOfSquares / (nReplicas() - 1) / nReplicas()) / mean;
+    }
+    
+    private void checkCanEstimateStandardError()
+    {
+      if (nReplicas() < 2)
+        throw new RuntimeException("At least two replicas are needed to estimate a standard error, got " + nReplicas());
+    }
+  }
+}
@@ -1,12 +1,23 @@
 package bayonet.smc;
 
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import bayonet.smc.AsyncProcessor.BackPressure;
 import briefj.opt.Option;
 
 
@@ -22,6 +33,8 @@ public class StreamingPropagator<S>
   public final ProposalWithRestart<S> proposal;
   public final PropagatorOptions options;
   private Consumer<S> processor = null;
+  private WeightedAccumulator<S> accumulator = null;
+  private ParticleStore<S> sampleStore = null;
   
   public StreamingPropagator(ProposalWithRestart<S> proposal, PropagatorOptions options)
   {
@@ -29,6 +42,13 @@ public class StreamingPropagator<S>
     this.options = options;
   }
   
+  /**
+   * Add a processor, called on each concrete particle during resampling (or on 
+   * each virtual particle, see PropagatorOptions.processVirtualParticles), either
+   * on the sampling thread, or asynchronously (see PropagatorOptions.processorQueueCapacity). 
+   * 
+   * @param newProcessor
+   */
   public void addProcessor(Consumer<S> newProcessor)
   {
     if (newProcessor == null)
@@ -38,6 +58,41 @@ public class StreamingPropagator<S>
     else
       this.processor = this.processor.andThen(newProcessor);
   }
+  
+  /**
+   * Add an accumulator, called on the sampling thread with every virtual particle and 
+   * its log weight (for example, a WeightedStatistics). In REPLAY mode, this forces
+   * all virtual particles to be replayed; in RESERVOIR mode, they are accumulated 
+   * while proposing (which requires nThreads = 1).
+   * 
+   * @param newAccumulator
+   */
+  public void addAccumulator(WeightedAccumulator<S> newAccumulator)
+  {
+    if (newAccumulator == null)
+      throw new RuntimeException();
+    if (this.accumulator == null)
+      this.accumulator = newAccumulator;
+    else
+      this.accumulator = this.accumulator.andThen(newAccumulator);
+  }
+
+  /**
+   * If set, the concrete particles are encoded in the given store (which should hold 
+   * numberOfConcreteParticles particles) as soon as they are instantiated, instead 
+   * of being kept on the heap; PropagationResult.samples is then a view of the store, 
+   * whose weights are reset.
+   * 
+   * Each call to execute() overwrites the store: the samples returned by earlier 
+   * calls are then invalidated, and accessing them throws a RuntimeException. Copy 
+   * them first if they are needed after the next call.
+   * 
+   * @param store The store, or null to keep the samples in a list
+   */
+  public void setSampleStore(ParticleStore<S> store)
+  {
+    this.sampleStore = store;
+  }
 
   public StreamingPropagator(ProposalWithRestart<S> proposal)
   {
@@ -56,95 +111,475 @@ public class StreamingPropagator<S>
      */
     public final List<S> samples;
     
-    private PropagationResult(CompactPopulation population, List<S> samples)
+    /**
+     * Why the virtual population stopped growing.
+     */
+    public final StopReason stopReason;
+    
+    /**
+     * Wall-clock duration of the cycle (proposal and resampling), in nanoseconds.
+     */
+    public final long elapsedNanos;
+    
+    private PropagationResult(CompactPopulation population, List<S> samples, StopReason stopReason, long elapsedNanos)
     {
       this.population = population;
       this.samples = samples;
+      this.stopReason = stopReason;
+      this.elapsedNanos = elapsedNanos;
     }
+    
+    /**
+     * @return The average wall-clock cost of one virtual particle (proposal, and 
+     *   the share of resampling), in nanoseconds.
+     */
+    public double nanosPerVirtualParticle()
+    {
+      return ((double) elapsedNanos) / population.getNumberOfParticles();
+    }
+  }
+  
+  public static enum StopReason
+  {
+    /**
+     * The relative ESS reached PropagatorOptions.targetedRelativeESS.
+     */
+    TARGETED_ESS, 
+    
+    /**
+     * PropagatorOptions.maxNumberOfVirtualParticles was reached.
+     */
+    MAX_VIRTUAL_PARTICLES, 
+    
+    /**
+     * PropagatorOptions.timeBudgetMillis was exhausted.
+     */
+    WALL_CLOCK_BUDGET, 
+    
+    /**
+     * PropagatorOptions.cpuTimeBudgetMillis was exhausted.
+     */
+    CPU_BUDGET
   }
   
   /**
    * Performs one cycle of importance sampling + resampling.
+   * 
+   * See PropagatorOptions.propagationMode for the two ways the surviving particles 
+   * can be instantiated (replay, or reservoir sampling).
+   * 
    * @return
    */
   public PropagationResult<S> execute()
   {
-    CompactPopulation population = new CompactPopulation();
-    propose(
-        population, 
-        options.targetedRelativeESS, 
-        options.numberOfConcreteParticles, 
-        options.maxNumberOfVirtualParticles);
-    if (options.verbose)
-      System.out.println(
-            "nVirtual=" + population.getNumberOfParticles() + ", "
-          + "nConcrete=" + options.numberOfConcreteParticles + ", "
-          + "relative_ess=" + (population.ess()/options.numberOfConcreteParticles));
-    double [] sortedCumulativeProbabilitiesForFinalResampling = 
-        options.resamplingScheme.getSortedCumulativeProbabilities(
-            options.resamplingRandom, 
-            options.numberOfConcreteParticles);
-    List<S> samples = resample(
-        population, 
-        sortedCumulativeProbabilitiesForFinalResampling);
-    return new PropagationResult<>(population, samples);
+    final long startNanos = System.nanoTime();
+    final Budget budget = new Budget(options, startNanos);
+    final boolean useReservoir = options.useReservoir();
+    if (!useReservoir && options.resamplingScheme == ResamplingScheme.RESIDUAL)
+      throw new RuntimeException("RESIDUAL resampling needs all the weights before throwing the darts, "
+          + "which is not possible when streaming: use another resamplingScheme");
+    if (useReservoir && ((options.processVirtualParticles && processor != null) || accumulator != null) && options.nThreads > 1)
+      throw new RuntimeException("Processing or accumulating virtual particles in RESERVOIR mode requires nThreads = 1");
+    AsyncProcessor<S> asyncProcessor = 
+        processor != null && options.processorQueueCapacity > 0 ? 
+          new AsyncProcessor<>(processor, options.processorQueueCapacity, options.processorBackPressure) : 
+          null;
+    Consumer<S> sink = asyncProcessor != null ? asyncProcessor : processor;
+    Consumer<S> concreteProcessor = options.processVirtualParticles ? null : sink;
+    WeightedAccumulator<S> virtualSink = accumulator;
+    if (options.processVirtualParticles && sink != null)
+    {
+      WeightedAccumulator<S> virtualProcessor = (logWeight, sample) -> sink.accept(sample);
+      virtualSink = virtualSink == null ? virtualProcessor : virtualProcessor.andThen(virtualSink);
+    }
+    Throwable primaryFailure = null;
+    try
+    {
+      CompactPopulation population = new CompactPopulation();
+      WeightedReservoir<S> reservoir = useReservoir ? 
+          new WeightedReservoir<>(options.numberOfConcreteParticles, options.resamplingRandom) : 
+          null;
+      List<Block> blocks;
+      final StopReason stopReason;
+      if (options.useBlocks())
+      {
+        blocks = new ArrayList<>();
+        stopReason = proposeInBlocks(
+            population, 
+            blocks,
+            options.targetedRelativeESS, 
+            options.numberOfConcreteParticles, 
+            options.maxNumberOfVirtualParticles,
+            budget,
+            reservoir, 
+            useReservoir ? virtualSink : null);
+      }
+      else
+      {
+        stopReason = propose(
+            population, 
+            options.targetedRelativeESS, 
+            options.numberOfConcreteParticles, 
+            options.maxNumberOfVirtualParticles,
+            budget,
+            reservoir, 
+            useReservoir ? virtualSink : null);
+        blocks = Collections.singletonList(new Block(Block.MAIN_STREAM, population, null));
+      }
+      final long proposeEndNanos = System.nanoTime();
+      final ReplayStatistics replayStatistics = new ReplayStatistics();
+      if (options.verbose)
+        System.out.println(
+              "nVirtual=" + population.getNumberOfParticles() + ", "
+            + "nConcrete=" + options.numberOfConcreteParticles + ", "
+            + "relative_ess=" + (population.ess()/options.numberOfConcreteParticles) + ", "
+            + "stop=" + stopReason);
+      final List<S> samples;
+      if (useReservoir)
+      {
+        samples = newSampleList();
+        for (S sample : reservoir.samples())
+          addConcrete(sample, samples, concreteProcessor);
+      }
+      else
+      {
+        double [] sortedCumulativeProbabilitiesForFinalResampling = 
+            options.resamplingScheme.getSortedCumulativeProbabilities(
+                options.resamplingRandom, 
+                options.numberOfConcreteParticles);
+        samples = resample(
+            population, 
+            blocks,
+            sortedCumulativeProbabilitiesForFinalResampling,
+            concreteProcessor,
+            virtualSink,
+            replayStatistics);
+      }
+      final long endNanos = System.nanoTime();
+      if (options.listener != null)
+        options.listener.propagationCompleted(new PropagationMetrics(
+            useReservoir ? PropagationMode.RESERVOIR : PropagationMode.REPLAY, 
+            options.nThreads, 
+            population.getNumberOfParticles(), 
+            options.numberOfConcreteParticles, 
+            population.ess() / options.numberOfConcreteParticles, 
+            population.logZEstimate(), 
+            stopReason, 
+            proposeEndNanos - startNanos, 
+            endNanos - proposeEndNanos, 
+            replayStatistics.nReplayedCalls, 
+            replayStatistics.nSanityCheckCalls, 
+            replayStatistics.sanityCheckNanos));
+      return new PropagationResult<>(population, samples, stopReason, endNanos - startNanos);
+    }
+    catch (Throwable t)
+    {
+      primaryFailure = t;
+      throw t;
+    }
+    finally
+    {
+      if (asyncProcessor != null)
+        try
+        {
+          asyncProcessor.close();
+        }
+        catch (RuntimeException e)
+        {
+          // do not mask the original failure
+          if (primaryFailure == null)
+            throw e;
+          primaryFailure.addSuppressed(e);
+        }
+    }
+  }
+  
+  /**
+   * How the concrete particles are instantiated, see PropagatorOptions.propagationMode.
+   */
+  public static enum PropagationMode 
+  { 
+    /**
+     * Only the weights are kept while proposing; the survivors are instantiated by 
+     * replaying the proposal (memory O(numberOfConcreteParticles), but the proposal is called twice).
+     */
+    REPLAY, 
+    
+    /**
+     * The survivors are selected while proposing, using one weighted reservoir per 
+     * concrete particle (multinomial resampling, each proposal call is made once, but 
+     * up to numberOfConcreteParticles particles are held per thread).
+     */
+    RESERVOIR, 
+    
+    /**
+     * RESERVOIR if the particles held by the reservoirs fit in reservoirMemoryBudget, REPLAY otherwise.
+     */
+    AUTO 
+  }
+  
+  /**
+   * A contiguous range of virtual particles, coming either from the proposal 
+   * itself (serial mode), or from one of its sub-streams (parallel mode).
+   */
+  private final class Block
+  {
+    private static final int MAIN_STREAM = -1;
+    
+    private final int streamIndex;
+    private final CompactPopulation population;
+    
+    /**
+     * The particles selected within the block in RESERVOIR mode, null otherwise.
+     */
+    private final WeightedReservoir<S> reservoir;
+    
+    /**
+     * CPU time used to propose the block (only measured when there is a CPU budget).
+     */
+    private final long cpuNanos;
+    
+    /**
+     * Non-null if the block was cut short because a budget was exhausted.
+     */
+    private final StopReason budgetStop;
+    
+    private Block(int streamIndex, CompactPopulation population, WeightedReservoir<S> reservoir)
+    {
+      this(streamIndex, population, reservoir, 0L, null);
+    }
+    
+    private Block(int streamIndex, CompactPopulation population, WeightedReservoir<S> reservoir, long cpuNanos, StopReason budgetStop)
+    {
+      this.streamIndex = streamIndex;
+      this.population = population;
+      this.reservoir = reservoir;
+      this.cpuNanos = cpuNanos;
+      this.budgetStop = budgetStop;
+    }
+  }
+  
+  /**
+   * @param block
+   * @return A proposal that will replay the randomness used to generate the given block.
+   */
+  private ProposalWithRestart<S> replayedProposal(Block block)
+  {
+    ProposalWithRestart<S> result;
+    if (block.streamIndex == Block.MAIN_STREAM)
+    {
+      result = this.proposal;
+      if (result.numberOfCalls() == 0)
+        return result;
+      result = result.restart();
+    }
+    else
+      result = this.proposal.subStream(block.streamIndex);
+    if (result.numberOfCalls() != 0)
+      throw new RuntimeException("restart() or subStream() incorrectly implemented");
+    return result;
   }
   
   /**
    * Perform resampling by replaying randomness to instantiate
    * concrete version of the particles that survive the resampling step.
    * 
-   * @param proposal
+   * Only the blocks containing at least one surviving particle are replayed, 
+   * unless virtual particles need to be processed or accumulated.
+   * 
+   * @param population The union of the blocks
+   * @param blocks The blocks, in the order in which they are concatenated
    * @param sortedCumulativeProbabilities See ResamplingScheme
+   * @param concreteProcessor If non-null, receives each resampled particle
+   * @param virtualSink If non-null, receives each virtual particle
+   * @param statistics Receives the number of replayed calls
    * @return The list of resampled, equi-weighted particles
    */
   private List<S> resample(
       CompactPopulation population,
-      double [] sortedCumulativeProbabilities)
+      List<Block> blocks,
+      double [] sortedCumulativeProbabilities,
+      Consumer<S> concreteProcessor,
+      WeightedAccumulator<S> virtualSink,
+      ReplayStatistics statistics)
   {
-    ProposalWithRestart<S> proposal = this.proposal;
-    if (proposal.numberOfCalls() != 0)
+    final double logSum = population.getLogSum();
+    final int popAfterCollapse = sortedCumulativeProbabilities.length;
+    final List<S> result = newSampleList();
+    
+    double blockStart = 0.0;
+    for (int b = 0; b < blocks.size(); b++)
     {
-      proposal = proposal.restart();
-      
-      if (proposal.numberOfCalls() != 0)
-        throw new RuntimeException("restart() incorrectly implemented");
+      final Block block = blocks.get(b);
+      // the last block also collects the darts missed because of numerical round-off
+      final double blockEnd = b == blocks.size() - 1 ? 
+          Double.POSITIVE_INFINITY : 
+          blockStart + Math.exp(block.population.getLogSum() - logSum);
+      if (virtualSink != null || (result.size() < popAfterCollapse && sortedCumulativeProbabilities[result.size()] < blockEnd))
+        replay(block, logSum, blockStart, blockEnd, sortedCumulativeProbabilities, result, concreteProcessor, virtualSink, statistics);
+      blockStart = blockEnd;
     }
     
-    final double logSum = population.getLogSum();
-    final int nParticles = population.getNumberOfParticles();
+    return result;
+  }
+  
+  /**
+   * Replay one block, adding to result the particles hit by the darts falling in 
+   * [blockStart, blockEnd), and check the proposal behaved deterministically.
+   */
+  private void replay(
+      Block block,
+      double logSum,
+      double blockStart,
+      double blockEnd,
+      double [] sortedCumulativeProbabilities,
+      List<S> result,
+      Consumer<S> concreteProcessor,
+      WeightedAccumulator<S> virtualSink,
+      ReplayStatistics statistics)
+  {
+    final ProposalWithRestart<S> proposal = replayedProposal(block);
+    final PrimitiveProposalWithRestart<S> primitiveProposal = 
+        proposal instanceof PrimitiveProposalWithRestart ? (PrimitiveProposalWithRestart<S>) proposal : null;
+    final int nParticles = block.population.getNumberOfParticles();
     final int popAfterCollapse = sortedCumulativeProbabilities.length;
-    final List<S> result = new ArrayList<>(popAfterCollapse);
     CompactPopulation sanityCheck = new CompactPopulation();
+    // accumulated by batches, as in propose() and proposeBlock()
+    final double [] buffer = new double[Math.max(1, Math.min(BATCH_SIZE, nParticles))];
     
-    double normalizedPartialSum = 0.0;
+    double normalizedPartialSum = blockStart;
     S candidate = null;
-    for (int i = 0; i < popAfterCollapse; i++)
+    // index and time at which the replay switches to checking determinism only
+    int sanityCheckStart = nParticles;
+    long sanityCheckStartNanos = 0L;
+    try
     {
-      double nextCumulativeProbability = sortedCumulativeProbabilities[i];
-      // sum normalized weights until we get to the next resampled cumulative probability
-      while (normalizedPartialSum < nextCumulativeProbability) 
+      for (int i = 0; i < nParticles; i++)
       {
-        int before = proposal.numberOfCalls();
-        Pair<Double, S> nextLogWeightSamplePair = proposal.nextLogWeightSamplePair();
-        if (proposal.numberOfCalls() != before + 1)
-          throw new RuntimeException("The method numberOfCalls() was incorrectly implemented in the proposal");
-        candidate = nextLogWeightSamplePair.getRight();
-        final double normalizedWeight = Math.exp(nextLogWeightSamplePair.getLeft() - logSum);
-        normalizedPartialSum += normalizedWeight;
-        sanityCheck.insertLogWeight(nextLogWeightSamplePair.getLeft());
+        final double logWeight;
+        if (virtualSink != null || (result.size() < popAfterCollapse && sortedCumulativeProbabilities[result.size()] < blockEnd))
+        {
+          int before = proposal.numberOfCalls();
+          if (primitiveProposal != null)
+          {
+            logWeight = primitiveProposal.nextLogWeight();
+            candidate = primitiveProposal.lastSample();
+          }
+          else
+          {
+            Pair<Double, S> nextLogWeightSamplePair = proposal.nextLogWeightSamplePair();
+            logWeight = nextLogWeightSamplePair.getLeft();
+            candidate = nextLogWeightSamplePair.getRight();
+          }
+          if (proposal.numberOfCalls() != before + 1)
+            throw new RuntimeException("The method numberOfCalls() was incorrectly implemented in the proposal");
+          final double normalizedWeight = Math.exp(logWeight - logSum);
+          normalizedPartialSum += normalizedWeight;
+          if (virtualSink != null)
+            virtualSink.add(logWeight, candidate);
+          // we may have found particle(s) that survived the collapse
+          while (result.size() < popAfterCollapse && sortedCumulativeProbabilities[result.size()] <= normalizedPartialSum)
+            addConcrete(candidate, result, concreteProcessor);
+        }
+        else
+        {
+          if (sanityCheckStart == nParticles)
+          {
+            sanityCheckStart = i;
+            if (options.listener != null)
+              sanityCheckStartNanos = System.nanoTime();
+          }
+          // replay the last few calls of the block to make sure things were indeed behaving deterministically
+          logWeight = proposal.nextLogWeight();
+        }
+      
+        final int position = i % BATCH_SIZE;
+        buffer[position] = logWeight;
+        if (position == BATCH_SIZE - 1 || i == nParticles - 1)
+          sanityCheck.insertLogWeights(buffer, 0, position + 1);
       }
-      // we have found one particle that survived the collapse
-      result.add(candidate);
     }
+    finally
+    {
+      proposal.cancelPending();
+    }
+    statistics.nReplayedCalls += nParticles;
+    statistics.nSanityCheckCalls += nParticles - sanityCheckStart;
+    if (sanityCheckStart < nParticles && options.listener != null)
+      statistics.sanityCheckNanos += System.nanoTime() - sanityCheckStartNanos;
+    // darts missed because of numerical round-off
+    while (result.size() < popAfterCollapse && sortedCumulativeProbabilities[result.size()] < blockEnd)
+      addConcrete(candidate, result, concreteProcessor);
     
-    // replay the last few calls of the proposal sequence to make sure things were indeed behaving deterministically
-    for (int i = proposal.numberOfCalls(); i < nParticles; i++)
-      sanityCheck.insertLogWeight(proposal.nextLogWeight());
-    if (sanityCheck.getLogSum() != logSum || sanityCheck.getLogSumOfSquares() != population.getLogSumOfSquares()) 
-      throw new RuntimeException("The provided proposal does not behave deterministically: " + sanityCheck.getLogSum() + " vs " + logSum);
-    
-    return result;
+    if (sanityCheck.getLogSum() != block.population.getLogSum() || sanityCheck.getLogSumOfSquares() != block.population.getLogSumOfSquares()) 
+      throw new RuntimeException("The provided proposal does not behave deterministically: " + sanityCheck.getLogSum() + " vs " + block.population.getLogSum());
+  }
+  
+  /**
+   * @return An empty list receiving the concrete particles, backed by the sample store if any.
+   */
+  private List<S> newSampleList()
+  {
+    if (sampleStore == null)
+      return new ArrayList<>(options.numberOfConcreteParticles);
+    if (sampleStore.nParticles() != options.numberOfConcreteParticles)
+      throw new RuntimeException("The sample store should hold numberOfConcreteParticles particles");
+    sampleStore.resetWeights();
+    final ParticleStore<S> store = sampleStore;
+    final long generation = store.startGeneration();
+    return new AbstractList<S>() 
+    {
+      private int size = 0;
+      
+      @Override
+      public S get(int index)
+      {
+        checkValid();
+        if (index >= size)
+          throw new IndexOutOfBoundsException();
+        return store.get(index);
+      }
+      
+      @Override
+      public S set(int index, S element)
+      {
+        checkValid();
+        if (index >= size)
+          throw new IndexOutOfBoundsException();
+        S previous = store.get(index);
+        store.set(index, element);
+        return previous;
+      }
+
+      @Override
+      public int size()
+      {
+        checkValid();
+        return size;
+      }
+      
+      @Override
+      public void add(int index, S element)
+      {
+        checkValid();
+        if (index != size)
+          throw new UnsupportedOperationException();
+        store.set(size++, element);
+      }
+      
+      private void checkValid()
+      {
+        if (store.generation() != generation)
+          throw new RuntimeException("These samples were overwritten by a later use of the sample store, see setSampleStore()");
+      }
+    };
+  }
+  
+  private static <S> void addConcrete(S particle, List<S> result, Consumer<S> concreteProcessor)
+  {
+    result.add(particle);
+    if (concreteProcessor != null)
+      concreteProcessor.accept(particle);
   }
   
   /**
@@ -159,32 +594,364 @@ public class StreamingPropagator<S>
    *   as ESS divided by minNumberOfParticles, since minNumberOfParticle will 
    *   correspond to the number of 'concrete' particles)
    * 
+   * Growth also stops, even before minNumberOfParticles, when the time budgets of
+   * the options are exhausted (see Budget.check()).
+   * 
+   * The weights are inserted in the population by batches of BATCH_SIZE (see
+   * replay(), which accumulates them the same way). In between, the ESS is tracked
+   * from sums of exp(logWeight - reference), so that the stopping criterion is still
+   * checked after each call.
+   * 
    * @param proposal
    * @param targetedRelativeESS
    * @param minNumberOfParticles
    * @param maxNumberOfParticles
+   * @return Why the growth stopped
+   */
+  private StopReason propose( 
+    CompactPopulation population,
+    double targetedRelativeESS,
+    int minNumberOfParticles,
+    int maxNumberOfParticles,
+    Budget budget,
+    WeightedReservoir<S> reservoir,
+    WeightedAccumulator<S> virtualSink)
+  {
+    final long cpuStart = budget.threadCpuNanos();
+    final double [] buffer = new double[BATCH_SIZE];
+    int nBuffered = 0;
+    // sums of exp(logWeight - reference) and of its square over the population and the buffer
+    double reference = population.getLogSum();
+    double sum = 0.0, sumOfSquares = 0.0;
+    if (reference != Double.NEGATIVE_INFINITY)
+    {
+      sum = 1.0;
+      sumOfSquares = Math.exp(population.getLogSumOfSquares() - 2.0 * reference);
+    }
+    try
+    {
+      while (true)
+      {
+        final int nParticles = population.getNumberOfParticles() + nBuffered;
+        StopReason reason = growthStopReason(nParticles, sum * sum / sumOfSquares, targetedRelativeESS, minNumberOfParticles, maxNumberOfParticles);
+        if (reason == null && nParticles > 0)
+          reason = budget.check(nParticles, cpuStart, budget.cpuNanos);
+        if (reason != null)
+        {
+          population.insertLogWeights(buffer, 0, nBuffered);
+          return reason;
+        }
+        final double logWeight = nextLogWeight(proposal, reservoir, virtualSink);
+        buffer[nBuffered++] = logWeight;
+        if (nBuffered == BATCH_SIZE)
+        {
+          population.insertLogWeights(buffer, 0, nBuffered);
+          nBuffered = 0;
+        }
+        if (logWeight == Double.NEGATIVE_INFINITY)
+          continue;
+        if (logWeight > reference)
+        {
+          // rescale to avoid overflows
+          final double ratio = reference == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(reference - logWeight);
+          sum *= ratio;
+          sumOfSquares *= ratio * ratio;
+          reference = logWeight;
+        }
+        final double weight = Math.exp(logWeight - reference);
+        sum += weight;
+        sumOfSquares += weight * weight;
+      }
+    }
+    finally
+    {
+      proposal.cancelPending();
+    }
+  }
+  
+  /**
+   * Number of calls to the proposal between two checks of the CPU time budget (the
+   * wall-clock budget is checked after each call).
+   */
+  private static final int CPU_BUDGET_CHECK_INTERVAL = 128;
+  
+  /**
+   * The replay counts of one call to execute(), see PropagationMetrics.
+   */
+  private static final class ReplayStatistics
+  {
+    private long nReplayedCalls, nSanityCheckCalls, sanityCheckNanos;
+  }
+  
+  /**
+   * The wall-clock and CPU time budgets of one call to execute(). They only bound the 
+   * growth of the virtual population: in REPLAY mode, resampling then replays the 
+   * blocks holding surviving particles, which is not interrupted.
+   */
+  private static final class Budget
+  {
+    private static final long UNLIMITED = Long.MAX_VALUE;
+    
+    private final long startNanos;
+    private final long wallClockNanos;
+    private final long cpuNanos;
+    
+    private Budget(PropagatorOptions options, long startNanos)
+    {
+      this.startNanos = startNanos;
+      this.wallClockNanos = options.timeBudgetMillis > 0 ? options.timeBudgetMillis * 1_000_000L : UNLIMITED;
+      this.cpuNanos = options.cpuTimeBudgetMillis > 0 ? options.cpuTimeBudgetMillis * 1_000_000L : UNLIMITED;
+      if (cpuNanos != UNLIMITED)
+      {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!threadBean.isCurrentThreadCpuTimeSupported())
+          throw new RuntimeException("cpuTimeBudgetMillis is not supported by this JVM");
+        if (!threadBean.isThreadCpuTimeEnabled())
+          threadBean.setThreadCpuTimeEnabled(true);
+      }
+    }
+    
+    /**
+     * @return The CPU time of the current thread, or zero if there is no CPU budget
+     */
+    private long threadCpuNanos()
+    {
+      return cpuNanos == UNLIMITED ? 0L : ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+    
+    /**
+     * Check to perform after each call to the proposal: System.nanoTime() is read 
+     * every time, so that expensive proposals overrun the wall-clock budget by at most 
+     * one call, while the thread CPU time, slower to read, only every 
+     * CPU_BUDGET_CHECK_INTERVAL calls.
+     * 
+     * @param nCalls Number of calls made so far by the caller
+     * @param cpuStartNanos threadCpuNanos() when the caller started
+     * @param cpuAllowanceNanos CPU time the caller is allowed to use
+     * @return The exhausted budget, or null if there is time left
+     */
+    private StopReason check(int nCalls, long cpuStartNanos, long cpuAllowanceNanos)
+    {
+      if (wallClockNanos != UNLIMITED && System.nanoTime() - startNanos >= wallClockNanos)
+        return StopReason.WALL_CLOCK_BUDGET;
+      if (cpuAllowanceNanos != UNLIMITED && nCalls % CPU_BUDGET_CHECK_INTERVAL == 0 && 
+          threadCpuNanos() - cpuStartNanos >= cpuAllowanceNanos)
+        return StopReason.CPU_BUDGET;
+      return null;
+    }
+    
+    /**
+     * @param cpuUsedNanos CPU time used so far by the caller
+     * @param cpuAllowanceNanos CPU time the caller is allowed to use
+     * @return The exhausted budget, or null if there is time left
+     */
+    private StopReason check(long cpuUsedNanos, long cpuAllowanceNanos)
+    {
+      if (wallClockNanos != UNLIMITED && System.nanoTime() - startNanos >= wallClockNanos)
+        return StopReason.WALL_CLOCK_BUDGET;
+      if (cpuAllowanceNanos != UNLIMITED && cpuUsedNanos >= cpuAllowanceNanos)
+        return StopReason.CPU_BUDGET;
+      return null;
+    }
+  }
+  
+  /**
+   * Call the proposal once. The particle is only instantiated if it needs to be 
+   * offered to a reservoir, a processor or an accumulator.
+   * 
+   * @return The log weight of the proposed particle
+   */
+  private static <S> double nextLogWeight(
+    ProposalWithRestart<S> proposal, 
+    WeightedReservoir<S> reservoir, 
+    WeightedAccumulator<S> virtualSink)
+  {
+    if (reservoir == null && virtualSink == null)
+      return proposal.nextLogWeight();
+    final double logWeight;
+    final S sample;
+    if (proposal instanceof PrimitiveProposalWithRestart)
+    {
+      PrimitiveProposalWithRestart<S> primitiveProposal = (PrimitiveProposalWithRestart<S>) proposal;
+      logWeight = primitiveProposal.nextLogWeight();
+      sample = primitiveProposal.lastSample();
+    }
+    else
+    {
+      Pair<Double, S> nextLogWeightSamplePair = proposal.nextLogWeightSamplePair();
+      logWeight = nextLogWeightSamplePair.getLeft();
+      sample = nextLogWeightSamplePair.getRight();
+    }
+    if (reservoir != null && reservoir.offer(logWeight))
+      reservoir.accept(sample);
+    if (virtualSink != null)
+      virtualSink.add(logWeight, sample);
+    return logWeight;
+  }
+  
+  /**
+   * @return Why the population should stop growing, ignoring the time budgets, or 
+   *   null if it should keep growing
    */
-  private void  propose( 
+  private static StopReason growthStopReason(
     CompactPopulation population,
     double targetedRelativeESS,
     int minNumberOfParticles,
     int maxNumberOfParticles)
   {
-    while 
-        ( 
-          population.getNumberOfParticles() < minNumberOfParticles || 
-          (
-              population.getNumberOfParticles() < maxNumberOfParticles && 
-              population.ess() / minNumberOfParticles < targetedRelativeESS
-          )
-        )
-      population.insertLogWeight(proposal.nextLogWeight());
+    return growthStopReason(population.getNumberOfParticles(), population.ess(), targetedRelativeESS, minNumberOfParticles, maxNumberOfParticles);
   }
   
-  public static final class PropagatorOptions
+  private static StopReason growthStopReason(
+    int nParticles,
+    double ess,
+    double targetedRelativeESS,
+    int minNumberOfParticles,
+    int maxNumberOfParticles)
+  {
+    if (nParticles < minNumberOfParticles)
+      return null;
+    if (nParticles >= maxNumberOfParticles)
+      return StopReason.MAX_VIRTUAL_PARTICLES;
+    if (ess / minNumberOfParticles >= targetedRelativeESS)
+      return StopReason.TARGETED_ESS;
+    return null;
+  }
+  
+  /**
+   * Same as propose(), but the population is grown by rounds. In each round, 
+   * nThreads blocks of (at most) virtualParticlesPerBlock particles are proposed
+   * concurrently, each from its own sub-stream of the proposal. The stopping 
+   * criterion is checked between rounds, so the result only depends on the seed 
+   * of the proposal, nThreads and virtualParticlesPerBlock.
+   * 
+   * The sub-stream index of each block acts as a checkpoint: resample() can 
+   * regenerate any block without replaying the ones before it.
+   * 
+   * In RESERVOIR mode, each block fills its own reservoir, seeded from 
+   * resamplingRandom, and these are merged, in block order, into the given reservoir. 
+   * 
+   * The time budgets are also checked within the blocks (in which case the result 
+   * is no longer deterministic). The CPU budget left at the beginning of a round is 
+   * shared equally between its blocks.
+   * 
+   * @param result Receives the blocks, in the order in which they should be concatenated
+   * @return Why the growth stopped
+   */
+  private StopReason proposeInBlocks(
+    CompactPopulation population,
+    List<Block> result,
+    double targetedRelativeESS,
+    int minNumberOfParticles,
+    int maxNumberOfParticles,
+    Budget budget,
+    WeightedReservoir<S> reservoir,
+    WeightedAccumulator<S> virtualSink)
   {
-    @Option 
-    public boolean verbose = true;
+    final int cap = Math.max(minNumberOfParticles, maxNumberOfParticles);
+    final ForkJoinPool pool = options.nThreads > 1 ? new ForkJoinPool(options.nThreads) : null;
+    long cpuUsed = 0L;
+    StopReason budgetStop = null;
+    try
+    {
+      while (true)
+      {
+        StopReason reason = growthStopReason(population, targetedRelativeESS, minNumberOfParticles, maxNumberOfParticles);
+        if (reason == null && population.getNumberOfParticles() > 0)
+          reason = budgetStop != null ? budgetStop : budget.check(cpuUsed, budget.cpuNanos);
+        if (reason != null)
+          return reason;
+        final long cpuAllowance = budget.cpuNanos == Budget.UNLIMITED ? 
+            Budget.UNLIMITED : 
+            (budget.cpuNanos - cpuUsed) / options.nThreads;
+        List<ForkJoinTask<Block>> round = new ArrayList<>(options.nThreads);
+        int remaining = cap - population.getNumberOfParticles();
+        for (int t = 0; t < options.nThreads && remaining > 0; t++)
+        {
+          final int streamIndex = result.size() + t;
+          final int blockSize = Math.min(options.virtualParticlesPerBlock, remaining);
+          remaining -= blockSize;
+          final Random reservoirRandom = reservoir == null ? null : new Random(options.resamplingRandom.nextLong());
+          Callable<Block> task = () -> proposeBlock(streamIndex, blockSize, budget, cpuAllowance, reservoirRandom, virtualSink);
+          round.add(pool == null ? ForkJoinTask.adapt(task) : pool.submit(task));
+        }
+        for (ForkJoinTask<Block> task : round)
+        {
+          Block block = pool == null ? task.invoke() : task.join();
+          population.merge(block.population);
+          cpuUsed += block.cpuNanos;
+          if (budgetStop == null)
+            budgetStop = block.budgetStop;
+          if (reservoir == null)
+            result.add(block);
+          else
+          {
+            reservoir.merge(block.reservoir);
+            // the survivors are already selected, release the block's reservoir
+            result.add(new Block(block.streamIndex, block.population, null));
+          }
+        }
+      }
+    }
+    finally
+    {
+      if (pool != null)
+        pool.shutdown();
+    }
+  }
+  
+  /**
+   * Number of weights accumulated at once when proposing.
+   */
+  private static final int BATCH_SIZE = 1024;
+  
+  private Block proposeBlock(
+      int streamIndex, 
+      int blockSize, 
+      Budget budget, 
+      long cpuAllowanceNanos, 
+      Random reservoirRandom, 
+      WeightedAccumulator<S> virtualSink)
+  {
+    final long cpuStart = budget.threadCpuNanos();
+    ProposalWithRestart<S> subStream = proposal.subStream(streamIndex);
+    if (subStream.numberOfCalls() != 0)
+      throw new RuntimeException("subStream() incorrectly implemented");
+    CompactPopulation blockPopulation = new CompactPopulation();
+    WeightedReservoir<S> blockReservoir = reservoirRandom == null ? 
+        null : 
+        new WeightedReservoir<>(options.numberOfConcreteParticles, reservoirRandom);
+    final double [] buffer = new double[Math.min(BATCH_SIZE, blockSize)];
+    StopReason budgetStop = null;
+    try
+    {
+      for (int start = 0; start < blockSize && budgetStop == null; start += BATCH_SIZE)
+      {
+        final int end = Math.min(blockSize, start + BATCH_SIZE);
+        int i = start;
+        for (; i < end; i++)
+        {
+          if (i > 0 && (budgetStop = budget.check(i, cpuStart, cpuAllowanceNanos)) != null)
+            break;
+          buffer[i - start] = nextLogWeight(subStream, blockReservoir, virtualSink);
+        }
+        if (i > start)
+          blockPopulation.insertLogWeights(buffer, 0, i - start);
+      }
+    }
+    finally
+    {
+      subStream.cancelPending();
+    }
+    return new Block(streamIndex, blockPopulation, blockReservoir, budget.threadCpuNanos() - cpuStart, budgetStop);
+  }
+  
+  public static final class PropagatorOptions implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    
+    @Option(gloss = "Print the number of particles, relative ESS and stop reason of each generation to standard out.")
+    public boolean verbose = false;
 
     @Option(gloss = "Number of particles stored in memory.")
     public int numberOfConcreteParticles = DEFAULT_N_CONCRETE_PARTICLES;
@@ -195,12 +962,96 @@ public class StreamingPropagator<S>
     @Option(gloss = "Virtual particles will be used until that relative effective sampling size is reached (or maxNumberOfVirtualParticles is reached)")
     public double targetedRelativeESS = 0.5;
     
+    @Option(gloss = "If positive, the virtual population stops growing after that many milliseconds (wall-clock), even if fewer than numberOfConcreteParticles virtual particles were proposed. Only covers the growth: in REPLAY mode, the replay of the surviving particles comes on top.")
+    public long timeBudgetMillis = 0;
+    
+    @Option(gloss = "If positive, the virtual population stops growing after that many milliseconds of CPU time, summed over the threads proposing particles. Only covers the growth, as timeBudgetMillis.")
+    public long cpuTimeBudgetMillis = 0;
+    
+    @Option(gloss = "Number of threads used to grow the virtual population. If larger than one, the proposal should support subStream() and be thread safe.")
+    public int nThreads = 1;
+    
+    @Option(gloss = "When nThreads > 1 or checkpointedReplay is set, virtual particles are proposed in blocks of that size, each from an independently seeded sub-stream of the proposal.")
+    public int virtualParticlesPerBlock = DEFAULT_VIRTUAL_PARTICLES_PER_BLOCK;
+    
+    @Option(gloss = "Propose virtual particles in blocks (see virtualParticlesPerBlock) even when nThreads = 1, so that resampling only replays the blocks containing surviving particles. Requires a proposal supporting subStream().")
+    public boolean checkpointedReplay = false;
+    
+    @Option(gloss = "If positive, the processors (see addProcessor()) run on a separate thread, fed through a bounded queue of that capacity. Otherwise, they run on the sampling thread.")
+    public int processorQueueCapacity = 0;
+    
+    @Option(gloss = "What to do when the processor queue is full: BLOCK the sampling thread, or DROP the particle.")
+    public BackPressure processorBackPressure = BackPressure.BLOCK;
+    
+    @Option(gloss = "If true, the processors receive every virtual particle (all of them being then replayed), instead of the concrete particles.")
+    public boolean processVirtualParticles = false;
+    
+    @Option(gloss = "REPLAY: keep only the weights while proposing, and instantiate the surviving particles by replaying the proposal. "
+        + "RESERVOIR: select the surviving particles while proposing, by weighted reservoir sampling (always multinomial, resamplingScheme is ignored). "
+        + "AUTO: RESERVOIR if the reservoirs fit in reservoirMemoryBudget, REPLAY otherwise.")
+    public PropagationMode propagationMode = PropagationMode.AUTO;
+    
+    @Option(gloss = "Memory (in bytes) that the particles held by reservoirs may use in AUTO mode, estimated with estimatedBytesPerParticle.")
+    public long reservoirMemoryBudget = 0;
+    
+    @Option(gloss = "Estimated memory footprint of one particle (in bytes), used in AUTO mode.")
+    public long estimatedBytesPerParticle = DEFAULT_ESTIMATED_BYTES_PER_PARTICLE;
+    
+    /**
+     * If set, receives the metrics of each call to execute() (see MetricsSinks for 
+     * CSV and JSON lines output). Not serialized.
+     */
+    public transient PropagationListener listener = null;
+    
     @Option
     public Random resamplingRandom = new Random(1);
     
+    /**
+     * RESIDUAL is not supported (its darts depend on the weights, which are not known
+     * when the darts are thrown).
+     */
     @Option
     public ResamplingScheme resamplingScheme = ResamplingScheme.STRATIFIED;
     
     public static final int DEFAULT_N_CONCRETE_PARTICLES = 1000;
+    public static final int DEFAULT_VIRTUAL_PARTICLES_PER_BLOCK = 10000;
+    public static final long DEFAULT_ESTIMATED_BYTES_PER_PARTICLE = 1024;
+    
+    /**
+     * @return A shallow copy of these options (in particular, resamplingRandom is shared)
+     */
+    public PropagatorOptions copy()
+    {
+      PropagatorOptions result = new PropagatorOptions();
+      try
+      {
+        for (Field field : PropagatorOptions.class.getFields())
+          if (!Modifier.isStatic(field.getModifiers()))
+            field.set(result, field.get(this));
+      } 
+      catch (IllegalAccessException e)
+      {
+        throw new RuntimeException(e);
+      }
+      return result;
+    }
+    
+    private boolean useBlocks()
+    {
+      return nThreads > 1 || checkpointedReplay;
+    }
+    
+    private boolean useReservoir()
+    {
+      switch (propagationMode)
+      {
+        case REPLAY    : return false;
+        case RESERVOIR : return true;
+        default :
+          // in parallel, one reservoir per block in flight, plus the merged one
+          final long nReservoirs = useBlocks() ? nThreads + 1 : 1;
+          return nReservoirs * numberOfConcreteParticles * estimatedBytesPerParticle <= reservoirMemoryBudget;
+      }
+    }
   }
 }
@@ -0,0 +1,28 @@
+package bayonet.smc;
+
+
+
+/**
+ * Receives weighted particles, for example every virtual particle of a 
+ * StreamingPropagator (see StreamingPropagator.addAccumulator()).
+ * 
+ * @param <S>
+ */
+@FunctionalInterface
+public interface WeightedAccumulator<S>
+{
+  /**
+   * @param logWeight LOG unnormalized weight of the particle
+   * @param sample The particle
+   */
+  public void add(double logWeight, S sample);
+  
+  default public WeightedAccumulator<S> andThen(WeightedAccumulator<S> after)
+  {
+    return (logWeight, sample) -> 
+    {
+      add(logWeight, sample);
+      after.add(logWeight, sample);
+    };
+  }
+}
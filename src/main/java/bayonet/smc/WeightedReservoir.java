@@ -0,0 +1,169 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import bayonet.math.NumericalUtils;
+
+
+
+/**
+ * Draws n particles with replacement, each with probability proportional to its 
+ * weight (i.e. multinomial resampling), in a single pass over a stream of weighted 
+ * particles whose total weight is not known in advance.
+ * 
+ * Each of the n slots is a weighted reservoir of size one: after having seen 
+ * particles with total weight W, a slot holds particle i with probability w[i]/W. 
+ * Instead of flipping a coin for each slot and particle, each slot jumps directly
+ * to its next replacement: if the slot was last replaced when the total weight 
+ * was W, the next replacement happens when the total weight first exceeds W/U, 
+ * U uniform (in log scale, log(W) + Exp(1)), as in the A-ExpJ algorithm of 
+ * Efraimidis and Spirakis. Slots are kept in a heap ordered by their next 
+ * replacement, so a particle that does not replace any slot costs O(1).
+ * 
+ * Usage: for each particle, call offer(logWeight); if it returns true, call 
+ * accept(particle). 
+ *
+ * @param <S>
+ */
+public class WeightedReservoir<S>
+{
+  private final Random random;
+  private final Object [] samples;
+  
+  /**
+   * For each slot, the log of the total weight beyond which the slot will be replaced.
+   */
+  private final double [] thresholds;
+  
+  /**
+   * Min-heap of the slot indices, ordered by thresholds.
+   */
+  private final int [] heap;
+  
+  private double logTotalWeight = Double.NEGATIVE_INFINITY;
+  private boolean thresholdsStale = false;
+  
+  public WeightedReservoir(int nSlots, Random random)
+  {
+    this.random = random;
+    this.samples = new Object[nSlots];
+    this.thresholds = new double[nSlots];
+    this.heap = new int[nSlots];
+    for (int i = 0; i < nSlots; i++)
+    {
+      thresholds[i] = Double.NEGATIVE_INFINITY;
+      heap[i] = i;
+    }
+  }
+  
+  /**
+   * @param logWeight LOG unnormalized weight of the next particle of the stream
+   * @return Whether that particle is selected by at least one slot, in which case 
+   *   accept() should be called with that particle before the next call to offer()
+   */
+  public boolean offer(double logWeight)
+  {
+    if (thresholdsStale)
+      resetThresholds();
+    logTotalWeight = NumericalUtils.logAdd(logTotalWeight, logWeight);
+    return heap.length > 0 && thresholds[heap[0]] < logTotalWeight;
+  }
+  
+  /**
+   * @param sample The particle given to the last call to offer()
+   */
+  public void accept(S sample)
+  {
+    while (thresholds[heap[0]] < logTotalWeight)
+    {
+      final int slot = heap[0];
+      samples[slot] = sample;
+      thresholds[slot] = logTotalWeight + nextExponential();
+      siftDown(0);
+    }
+  }
+  
+  /**
+   * Combine with a reservoir (with the same number of slots) fed with a disjoint stream 
+   * of particles: each slot keeps its particle, or takes the one of other, with 
+   * probability proportional to the total weight of each stream.
+   * 
+   * @param other
+   */
+  public void merge(WeightedReservoir<S> other)
+  {
+    if (other.samples.length != samples.length)
+      throw new RuntimeException("The reservoirs should have the same number of slots");
+    if (other.logTotalWeight == Double.NEGATIVE_INFINITY)
+      return;
+    final double newLogTotalWeight = NumericalUtils.logAdd(logTotalWeight, other.logTotalWeight);
+    final double otherProbability = Math.exp(other.logTotalWeight - newLogTotalWeight);
+    for (int i = 0; i < samples.length; i++)
+      if (random.nextDouble() < otherProbability)
+        samples[i] = other.samples[i];
+    logTotalWeight = newLogTotalWeight;
+    thresholdsStale = true;
+  }
+  
+  /**
+   * @return The particle held by each slot.
+   */
+  @SuppressWarnings("unchecked")
+  public List<S> samples()
+  {
+    if (logTotalWeight == Double.NEGATIVE_INFINITY && samples.length > 0)
+      throw new RuntimeException("No particle with a positive weight was offered");
+    List<S> result = new ArrayList<>(samples.length);
+    for (Object sample : samples)
+      result.add((S) sample);
+    return result;
+  }
+  
+  public int nSlots()
+  {
+    return samples.length;
+  }
+  
+  /**
+   * After a merge, the waiting times are drawn afresh (by memorylessness, a slot is next 
+   * replaced when the total weight exceeds W/U, whatever its history).
+   */
+  private void resetThresholds()
+  {
+    for (int i = 0; i < samples.length; i++)
+    {
+      thresholds[i] = logTotalWeight + nextExponential();
+      heap[i] = i;
+    }
+    for (int i = samples.length / 2 - 1; i >= 0; i--)
+      siftDown(i);
+    thresholdsStale = false;
+  }
+  
+  private double nextExponential()
+  {
+    return -Math.log(1.0 - random.nextDouble());
+  }
+  
+  private void siftDown(int position)
+  {
+    final int slot = heap[position];
+    final double threshold = thresholds[slot];
+    final int size = heap.length;
+    while (true)
+    {
+      int child = 2 * position + 1;
+      if (child >= size)
+        break;
+      if (child + 1 < size && thresholds[heap[child + 1]] < thresholds[heap[child]])
+        child++;
+      if (thresholds[heap[child]] >= threshold)
+        break;
+      heap[position] = heap[child];
+      position = child;
+    }
+    heap[position] = slot;
+  }
+}
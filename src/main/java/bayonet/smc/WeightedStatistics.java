@@ -0,0 +1,139 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+import bayonet.math.NumericalUtils;
+
+
+
+/**
+ * Weighted means and variances of a few real-valued statistics of the particles, 
+ * updated in one pass (West's weighted version of Welford's algorithm).
+ * 
+ * Only normalized quantities are stored: each update uses the fraction of the 
+ * total weight carried by the new particle, computed in log scale relative to 
+ * the largest of the two, so that weights spanning hundreds of orders of 
+ * magnitude neither overflow nor lose the small ones.
+ * 
+ * @param <S>
+ */
+public class WeightedStatistics<S> implements WeightedAccumulator<S>
+{
+  private final List<ToDoubleFunction<? super S>> statistics;
+  private final double [] means;
+  private final double [] variances;
+  private double logSum = Double.NEGATIVE_INFINITY;
+  private double logSumOfSquares = Double.NEGATIVE_INFINITY;
+  private long nSamples = 0;
+  
+  @SafeVarargs
+  public WeightedStatistics(ToDoubleFunction<? super S> ... statistics)
+  {
+    // copied element by element: passing the varargs array on would let it escape
+    final List<ToDoubleFunction<? super S>> copy = new ArrayList<>(statistics.length);
+    for (ToDoubleFunction<? super S> statistic : statistics)
+      copy.add(statistic);
+    this.statistics = Collections.unmodifiableList(copy);
+    this.means = new double[statistics.length];
+    this.variances = new double[statistics.length];
+  }
+
+  @Override
+  public void add(double logWeight, S sample)
+  {
+    if (logWeight == Double.NEGATIVE_INFINITY)
+    {
+      nSamples++;
+      return;
+    }
+    if (Double.isNaN(logWeight) || logWeight == Double.POSITIVE_INFINITY)
+      throw new RuntimeException("Invalid log weight: " + logWeight);
+    // fraction of the new total weight carried by the new particle
+    final double fraction;
+    if (logWeight <= logSum)
+    {
+      final double ratio = Math.exp(logWeight - logSum);
+      fraction = ratio / (1.0 + ratio);
+      logSum += Math.log1p(ratio);
+    }
+    else
+    {
+      final double ratio = Math.exp(logSum - logWeight);
+      fraction = 1.0 / (1.0 + ratio);
+      logSum = logWeight + Math.log1p(ratio);
+    }
+    logSumOfSquares = NumericalUtils.logAdd(logSumOfSquares, 2.0 * logWeight);
+    for (int i = 0; i < means.length; i++)
+    {
+      final double delta = statistics.get(i).applyAsDouble(sample) - means[i];
+      means[i] += fraction * delta;
+      variances[i] = (1.0 - fraction) * (variances[i] + fraction * delta * delta);
+    }
+    nSamples++;
+  }
+  
+  /**
+   * @param index Index of the statistic, in the order given to the constructor
+   * @return Weighted mean of the statistic
+   */
+  public double mean(int index)
+  {
+    return means[index];
+  }
+  
+  /**
+   * @param index
+   * @return Weighted variance of the statistic (normalized by the sum of the weights)
+   */
+  public double variance(int index)
+  {
+    return variances[index];
+  }
+  
+  /**
+   * @param index
+   * @return Weighted mean of the square of the statistic
+   */
+  public double secondMoment(int index)
+  {
+    return variances[index] + means[index] * means[index];
+  }
+  
+  /**
+   * @param index
+   * @return Approximate Monte Carlo standard error of mean(index), sqrt(variance / ESS)
+   */
+  public double standardError(int index)
+  {
+    return Math.sqrt(variances[index] / ess());
+  }
+  
+  /**
+   * @return Effective sample size of the weights seen so far
+   */
+  public double ess()
+  {
+    return Math.exp(2.0 * logSum - logSumOfSquares);
+  }
+  
+  /**
+   * @return LOG of the sum of the weights seen so far
+   */
+  public double getLogSum()
+  {
+    return logSum;
+  }
+  
+  public long getNumberOfSamples()
+  {
+    return nSamples;
+  }
+  
+  public int nStatistics()
+  {
+    return means.length;
+  }
+}
@@ -0,0 +1,107 @@
+package bayonet.distributions;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestPhilox4x32
+{
+  /**
+   * Known answers from the Random123 distribution (kat_vectors, philox4x32 with 10 rounds).
+   */
+  @Test
+  public void testKnownAnswers()
+  {
+    checkKnownAnswer(
+        new int[]{0, 0, 0, 0}, new int[]{0, 0},
+        new int[]{0x6627e8d5, 0xe169c58d, 0xbc57ac4c, 0x9b00dbd8});
+    checkKnownAnswer(
+        new int[]{0xffffffff, 0xffffffff, 0xffffffff, 0xffffffff}, new int[]{0xffffffff, 0xffffffff},
+        new int[]{0x408f276d, 0x41c83b0e, 0xa20bc7c6, 0x6d5451fd});
+    checkKnownAnswer(
+        new int[]{0x243f6a88, 0x85a308d3, 0x13198a2e, 0x03707344}, new int[]{0xa4093822, 0x299f31d0},
+        new int[]{0xd16cfe09, 0x94fdcceb, 0x5001e420, 0x24126ea1});
+  }
+
+  private static void checkKnownAnswer(int [] counter, int [] key, int [] expected)
+  {
+    int [] output = new int[4];
+    Philox4x32.philox(counter, key, output);
+    Assert.assertArrayEquals(expected, output);
+  }
+
+  /**
+   * Jumping to a position, or recreating the stream, should give the same draws as
+   * generating sequentially.
+   */
+  @Test
+  public void testRandomAccess()
+  {
+    Philox4x32 sequential = new Philox4x32(42, 7);
+    int [] draws = new int[1000];
+    for (int i = 0; i < draws.length; i++)
+      draws[i] = sequential.nextInt();
+    Assert.assertEquals(draws.length, sequential.getPosition());
+
+    Philox4x32 jumping = new Philox4x32(0).stream(3);
+    jumping.setSeed(new int[]{42, 0, 7, 0});
+    for (int position : new int[]{999, 0, 5, 4, 513, 3})
+    {
+      jumping.setPosition(position);
+      Assert.assertEquals(draws[position], jumping.nextInt());
+    }
+    Assert.assertEquals((((long) draws[0]) << 32) | (draws[1] & 0xFFFFFFFFL), new Philox4x32(42).stream(7).nextLong());
+
+    Random first = Random.counterBased(42, 7), second = Random.counterBased(42, 7);
+    for (int i = 0; i < 100; i++)
+      Assert.assertEquals(first.nextDouble(), second.nextDouble(), 0.0);
+    Assert.assertNotEquals(Random.counterBased(42, 8).nextDouble(), Random.counterBased(42, 7).nextDouble(), 0.0);
+    Assert.assertNotEquals(Random.counterBased(43, 7).nextDouble(), Random.counterBased(42, 7).nextDouble(), 0.0);
+  }
+
+  /**
+   * Moments of uniforms and Bernoullis, and a chi-square test on categorical draws,
+   * both within a stream and across the first draw of consecutive streams.
+   */
+  @Test
+  public void testStatistics()
+  {
+    final int n = 1_000_000;
+    for (boolean acrossStreams : new boolean[]{false, true})
+    {
+      Random random = Random.counterBased(1, 0);
+      double sum = 0.0, sumSq = 0.0, lagProduct = 0.0, previous = 0.0;
+      int nSuccesses = 0;
+      final double [] probabilities = new double[]{0.1, 0.2, 0.3, 0.4};
+      int [] counts = new int[probabilities.length];
+      for (int i = 0; i < n; i++)
+      {
+        if (acrossStreams)
+          random = Random.counterBased(1, i);
+        final double x = random.nextDouble();
+        sum += x;
+        sumSq += x * x;
+        lagProduct += x * previous;
+        previous = x;
+        if (random.nextBernoulli(0.25))
+          nSuccesses++;
+        counts[random.nextCategorical(probabilities)]++;
+      }
+      Assert.assertEquals(0.5, sum / n, 0.002);
+      Assert.assertEquals(1.0 / 12.0, sumSq / n - Math.pow(sum / n, 2), 0.001);
+      // lag one covariance
+      Assert.assertEquals(0.0, lagProduct / n - 0.25, 0.002);
+      Assert.assertEquals(0.25, ((double) nSuccesses) / n, 0.002);
+
+      double chiSquare = 0.0;
+      for (int i = 0; i < counts.length; i++)
+      {
+        final double expected = n * probabilities[i];
+        chiSquare += Math.pow(counts[i] - expected, 2) / expected;
+      }
+      // 0.999 quantile of the chi-square with 3 degrees of freedom
+      Assert.assertTrue("chi square = " + chiSquare, chiSquare < 16.27);
+    }
+  }
+}
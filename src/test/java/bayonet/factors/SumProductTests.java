@@ -1,14 +1,17 @@
 package bayonet.factors;
 
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.ejml.simple.SimpleMatrix;
+import org.jgrapht.Graphs;
 import org.jgrapht.UndirectedGraph;
 import org.junit.Assert;
 import org.junit.Test;
 
 import bayonet.graphs.GraphUtils;
 import bayonet.marginal.DiscreteFactorGraph;
+import bayonet.marginal.algo.CompiledSumProduct;
 import bayonet.marginal.algo.SumProduct;
 
 
@@ -29,6 +32,213 @@ public class SumProductTests
     }
   }
   
+  /**
+   * Processing the sites in parallel should give bit-identical results.
+   */
+  @Test
+  public void testParallelSites()
+  {
+    final int nStates = 4, nSites = 5000, nNodes = 30;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    double [] logNormalizations = new double[2];
+    double [][][] marginals = new double[2][][];
+    for (int parallel = 0; parallel < 2; parallel++)
+    {
+      DiscreteFactorGraph<Integer> model = buildRandomForest(new Random(1), nStates, nSites, nNodes, 1);
+      if (parallel == 1)
+      {
+        model.setSitePool(pool);
+        model.setParallelSiteThreshold(1);
+      }
+      SumProduct<Integer> sp = new SumProduct<Integer>(model);
+      logNormalizations[parallel] = sp.logNormalization();
+      marginals[parallel] = DiscreteFactorGraph.getNormalizedCopy(sp.computeMarginal(nNodes / 2));
+    }
+    pool.shutdown();
+    Assert.assertEquals(logNormalizations[0], logNormalizations[1], 0.0);
+    for (int site = 0; site < nSites; site++)
+      Assert.assertArrayEquals(marginals[0][site], marginals[1][site], 0.0);
+  }
+  
+  /**
+   * Computing the messages in parallel should give bit-identical results, on trees and forests, 
+   * with or without parallel sites.
+   */
+  @Test
+  public void testParallelMessages()
+  {
+    final int nStates = 3, nSites = 1000, nNodes = 200;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    for (int nTrees : new int[]{1, 5})
+    {
+      double [] logNormalizations = new double[3];
+      double [][][] marginals = new double[3][][];
+      for (int mode = 0; mode < 3; mode++)
+      {
+        DiscreteFactorGraph<Integer> model = buildRandomForest(new Random(1), nStates, nSites, nNodes, nTrees);
+        SumProduct<Integer> sp = new SumProduct<Integer>(model);
+        if (mode >= 1)
+          sp.setMessagePool(pool);
+        if (mode == 2)
+        {
+          model.setSitePool(pool);
+          model.setParallelSiteThreshold(1);
+        }
+        logNormalizations[mode] = sp.logNormalization();
+        marginals[mode] = DiscreteFactorGraph.getNormalizedCopy(sp.computeMarginal(nNodes - 1));
+      }
+      for (int mode = 1; mode < 3; mode++)
+      {
+        Assert.assertEquals(logNormalizations[0], logNormalizations[mode], 0.0);
+        for (int site = 0; site < nSites; site++)
+          Assert.assertArrayEquals(marginals[0][site], marginals[mode][site], 0.0);
+      }
+    }
+    pool.shutdown();
+  }
+  
+  /**
+   * Many repetitions on a bushy tree, where many messages are ready at once, to catch 
+   * messages launched twice or before their inputs.
+   */
+  @Test
+  public void testParallelMessagesStress()
+  {
+    final int nStates = 2, nSites = 2, nNodes = 3000, nHubs = 20;
+    ForkJoinPool pool = new ForkJoinPool(8);
+    DiscreteFactorGraph<Integer> model = buildRandomForest(new Random(1), nStates, nSites, nNodes, 1, nHubs);
+    final double expected = new SumProduct<Integer>(model).logNormalization();
+    for (int repetition = 0; repetition < 100; repetition++)
+    {
+      SumProduct<Integer> sp = new SumProduct<Integer>(model);
+      sp.setMessagePool(pool);
+      Assert.assertEquals(expected, sp.logNormalization(), 0.0);
+    }
+    pool.shutdown();
+  }
+  
+  /**
+   * After changing factors, updating a SumProduct should invalidate a few messages only, 
+   * and give the same results as a new one.
+   */
+  @Test
+  public void testIncremental()
+  {
+    final int nStates = 3, nSites = 10, nNodes = 200;
+    Random rand = new Random(1);
+    DiscreteFactorGraph<Integer> model = buildRandomForest(new Random(1), nStates, nSites, nNodes, 1);
+    SumProduct<Integer> incremental = new SumProduct<Integer>(model);
+    incremental.logNormalization();
+    Assert.assertEquals(0, incremental.update());
+    
+    for (int iteration = 0; iteration < 20; iteration++)
+    {
+      final int node = rand.nextInt(nNodes);
+      if (iteration % 2 == 0)
+      {
+        double [][] data = new double[nSites][nStates];
+        for (int site = 0; site < nSites; site++)
+          for (int s = 0; s < nStates; s++)
+            data[site][s] = rand.nextDouble();
+        model.unaryTimesEqual(node, data);
+      }
+      else
+      {
+        final int other = Graphs.neighborListOf(model.getTopology(), node).get(0);
+        model.removeBinary(node, other);
+        model.removeBinary(other, node);
+        double [][] matrix = new double[nStates][nStates];
+        for (int s1 = 0; s1 < nStates; s1++)
+          for (int s2 = 0; s2 < nStates; s2++)
+            matrix[s1][s2] = rand.nextDouble();
+        model.setBinary(node, other, matrix);
+      }
+      
+      final int nInvalidated = incremental.update();
+      Assert.assertTrue(nInvalidated < (nNodes - 1) / 2);
+      Assert.assertEquals(new SumProduct<Integer>(model).logNormalization(), incremental.logNormalization(), 0.0);
+      
+      // also with messages in both directions
+      final int query = rand.nextInt(nNodes);
+      double [][] 
+        expected = DiscreteFactorGraph.getNormalizedCopy(new SumProduct<Integer>(model).computeMarginal(query)),
+        actual = DiscreteFactorGraph.getNormalizedCopy(incremental.computeMarginal(query));
+      for (int site = 0; site < nSites; site++)
+        Assert.assertArrayEquals(expected[site], actual[site], 0.0);
+    }
+  }
+  
+  /**
+   * The compiled engine should agree with SumProduct on forests, and on long chains.
+   */
+  @Test
+  public void testCompiled()
+  {
+    final int nStates = 3, nSites = 5, nNodes = 2000;
+    DiscreteFactorGraph<Integer> forest = buildRandomForest(new Random(1), nStates, nSites, nNodes, 5);
+    SumProduct<Integer> sp = new SumProduct<Integer>(forest);
+    CompiledSumProduct<Integer> compiled = CompiledSumProduct.compile(forest);
+    final double expected = sp.logNormalization();
+    Assert.assertEquals(expected, compiled.logNormalization(), 1e-10 * Math.abs(expected));
+    for (int node = 0; node < nNodes; node += 97)
+    {
+      double [][] 
+        expectedMarginal = DiscreteFactorGraph.getNormalizedCopy(sp.computeMarginal(node)),
+        actual = DiscreteFactorGraph.getNormalizedCopy(compiled.computeMarginal(node));
+      for (int site = 0; site < nSites; site++)
+        Assert.assertArrayEquals(expectedMarginal[site], actual[site], 1e-10);
+    }
+    
+    final int len = 10000;
+    CompiledSumProduct<Integer> chain = CompiledSumProduct.compile(buildRegularMarkov(2, len));
+    Assert.assertEquals(-len * Math.log(2.0), chain.logNormalization(), 1e-6);
+  }
+  
+  /**
+   * A random forest where vertices 0, .., nTrees-1 are roots, and each other vertex i is 
+   * attached to a uniformly chosen vertex among 0, .., i-1, with random unaries at each site.
+   */
+  public static DiscreteFactorGraph<Integer> buildRandomForest(Random rand, int nStates, int nSites, int nNodes, int nTrees)
+  {
+    return buildRandomForest(rand, nStates, nSites, nNodes, nTrees, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Same as above, but attaching each vertex to one of the first nHubs vertices, giving 
+   * bushy trees when nHubs is small.
+   */
+  public static DiscreteFactorGraph<Integer> buildRandomForest(Random rand, int nStates, int nSites, int nNodes, int nTrees, int nHubs)
+  {
+    UndirectedGraph<Integer, ?> topology = GraphUtils.newUndirectedGraph();
+    for (int i = 0; i < nNodes; i++)
+    {
+      topology.addVertex(i);
+      if (i >= nTrees)
+        topology.addEdge(rand.nextInt(Math.min(i, nHubs)), i);
+    }
+    
+    DiscreteFactorGraph<Integer> result = new DiscreteFactorGraph<Integer>(topology);
+    for (int i = 0; i < nNodes; i++)
+    {
+      double [][] data = new double[nSites][nStates];
+      for (int site = 0; site < nSites; site++)
+        for (int s = 0; s < nStates; s++)
+          data[site][s] = rand.nextDouble();
+      result.setUnary(i, data);
+    }
+    for (int i = 1; i < nNodes; i++)
+      for (Integer other : topology.vertexSet())
+        if (other < i && topology.containsEdge(other, i))
+        {
+          double [][] matrix = new double[nStates][nStates];
+          for (int s1 = 0; s1 < nStates; s1++)
+            for (int s2 = 0; s2 < nStates; s2++)
+              matrix[s1][s2] = rand.nextDouble();
+          result.setBinary(other, i, matrix);
+        }
+    return result;
+  }
+  
   public static DiscreteFactorGraph<Integer> buildRegularMarkov(int nStates, int length)
   {
     // build topology
@@ -0,0 +1,38 @@
+package bayonet.smc;
+
+import java.util.Random;
+
+import bayonet.distributions.Multinomial;
+
+
+
+/**
+ * Rough timing of each ResamplingScheme, from 10^3 to 10^7 particles 
+ * (not a unit test, run the main method).
+ */
+public class ResamplingSchemeBenchmark
+{
+  public static void main(String [] args)
+  {
+    Random rand = new Random(1);
+    final int nRepeats = 5;
+    System.out.println("scheme,nParticles,millisecondsPerResampling");
+    for (int nParticles = 1000; nParticles <= 10000000; nParticles *= 10)
+    {
+      double [] w = new double[nParticles];
+      for (int i = 0; i < nParticles; i++)
+        w[i] = rand.nextDouble();
+      Multinomial.normalize(w);
+      for (ResamplingScheme scheme : ResamplingScheme.values())
+      {
+        // warm-up
+        scheme.getSortedCumulativeProbabilities(rand, w, nParticles);
+        long start = System.nanoTime();
+        for (int r = 0; r < nRepeats; r++)
+          scheme.getSortedCumulativeProbabilities(rand, w, nParticles);
+        double elapsed = (System.nanoTime() - start) / 1e6 / nRepeats;
+        System.out.println(scheme + "," + nParticles + "," + elapsed);
+      }
+    }
+  }
+}
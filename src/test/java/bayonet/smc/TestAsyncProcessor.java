@@ -0,0 +1,123 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.smc.AsyncProcessor.BackPressure;
+
+
+
+public class TestAsyncProcessor
+{
+  @Test
+  public void testOrder()
+  {
+    final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+    AsyncProcessor<Integer> processor = new AsyncProcessor<>(processed::add, 4, BackPressure.BLOCK);
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+    {
+      processor.accept(i);
+      expected.add(i);
+    }
+    processor.close();
+    Assert.assertEquals(expected, processed);
+    Assert.assertEquals(0, processor.numberOfDroppedItems());
+  }
+
+  /**
+   * close() should return only after the items waiting in the queue are processed.
+   */
+  @Test
+  public void testCloseDrains()
+  {
+    final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+    AsyncProcessor<Integer> processor = new AsyncProcessor<>(item ->
+    {
+      sleep(1);
+      processed.add(item);
+    }, 100, BackPressure.BLOCK);
+    for (int i = 0; i < 50; i++)
+      processor.accept(i);
+    processor.close();
+    Assert.assertEquals(50, processed.size());
+  }
+
+  @Test
+  public void testDrop() throws InterruptedException
+  {
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+    AsyncProcessor<Integer> processor = new AsyncProcessor<>(item ->
+    {
+      try { release.await(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+      processed.add(item);
+    }, 2, BackPressure.DROP);
+    final int nItems = 10;
+    for (int i = 0; i < nItems; i++)
+      processor.accept(i);
+    // at most one item held by the worker and two in the queue
+    Assert.assertTrue(processor.numberOfDroppedItems() >= nItems - 3);
+    release.countDown();
+    processor.close();
+    Assert.assertEquals(nItems, processed.size() + processor.numberOfDroppedItems());
+  }
+
+  @Test
+  public void testProcessorException()
+  {
+    AsyncProcessor<Integer> processor = new AsyncProcessor<>(item ->
+    {
+      if (item == 5)
+        throw new IllegalStateException("failed on 5");
+    }, 4, BackPressure.BLOCK);
+    try
+    {
+      for (int i = 0; i < 1000; i++)
+        processor.accept(i);
+      processor.close();
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  /**
+   * A producer blocked on a full queue should not wait forever for a worker that stopped.
+   */
+  @Test
+  public void testWorkerStopped()
+  {
+    // a worker thread exiting without processing anything
+    AsyncProcessor<Integer> processor = new AsyncProcessor<>(item -> {}, 1, BackPressure.BLOCK, runnable -> new Thread(() -> {}));
+    try
+    {
+      for (int i = 0; i < 10; i++)
+        processor.accept(i);
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage().contains("stopped"));
+    }
+  }
+
+  private static void sleep(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+}
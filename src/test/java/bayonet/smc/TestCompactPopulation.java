@@ -46,5 +46,79 @@ public class TestCompactPopulation
     
     Assert.assertEquals(lazy.ess(), naive.ess(), NumericalUtils.THRESHOLD);
   }
+  
+  @Test
+  public void testBatchesAndMerge()
+  {
+    CompactPopulation lazy = new CompactPopulation();
+    CompactPopulation firstHalf = new CompactPopulation();
+    CompactPopulation secondHalf = new CompactPopulation();
+    NaiveCompactPopulation naive = new NaiveCompactPopulation();
+    
+    Random rand = new Random(1);
+    
+    final int n = 10000;
+    double [] artificialLogWeights = new double[n];
+    for (int i = 0; i < n; i++)
+    {
+      artificialLogWeights[i] = rand.nextGaussian();
+      lazy.insertLogWeight(artificialLogWeights[i]);
+      naive.insertLogWeight(artificialLogWeights[i]);
+    }
+    for (int start = 0; start < n; start += 1000)
+      (start < n/2 ? firstHalf : secondHalf).insertLogWeights(artificialLogWeights, start, start + 1000);
+    firstHalf.merge(secondHalf);
+    
+    Assert.assertEquals(n, firstHalf.getNumberOfParticles());
+    Assert.assertEquals(naive.ess(), firstHalf.ess(), NumericalUtils.THRESHOLD);
+    Assert.assertEquals(lazy.logZEstimate(), firstHalf.logZEstimate(), NumericalUtils.THRESHOLD);
+  }
+  
+  /**
+   * Checks the tolerance documented in CompactPopulation.insertLogWeights(), against 
+   * sums of the weights accumulated in double-double precision (about 32 digits).
+   */
+  @Test
+  public void testLargePopulationAgainstHighPrecision()
+  {
+    final int n = 10000000, batchSize = 1024;
+    CompactPopulation batched = new CompactPopulation();
+    CompactPopulation sequential = new CompactPopulation();
+    double [] sum = new double[2], sumOfSquares = new double[2];
+    Random rand = new Random(1);
+    double [] batch = new double[batchSize];
+    for (int start = 0; start < n; start += batchSize)
+    {
+      final int size = Math.min(batchSize, n - start);
+      for (int i = 0; i < size; i++)
+      {
+        batch[i] = rand.nextGaussian();
+        sequential.insertLogWeight(batch[i]);
+        final double weight = Math.exp(batch[i]);
+        add(sum, weight);
+        add(sumOfSquares, weight * weight);
+      }
+      batched.insertLogWeights(batch, 0, size);
+    }
+    final double logZ = Math.log(sum[0] + sum[1]) - Math.log(n);
+    final double ess = (sum[0] + sum[1]) * (sum[0] + sum[1]) / (sumOfSquares[0] + sumOfSquares[1]);
+    final double sequentialEssError = Math.abs(sequential.ess() - ess) / ess;
+    System.out.println("sequential insertions: logZ error = " + Math.abs(sequential.logZEstimate() - logZ) + ", relative ESS error = " + sequentialEssError);
+    Assert.assertEquals(logZ, batched.logZEstimate(), 1e-12);
+    Assert.assertEquals(1.0, batched.ess() / ess, 1e-5);
+    Assert.assertTrue(sequentialEssError > 1e-4);
+  }
+  
+  /**
+   * Adds x to the double-double accumulator {high, low}, using the error-free 
+   * transformation TwoSum.
+   */
+  private static void add(double [] accumulator, double x)
+  {
+    final double sum = accumulator[0] + x;
+    final double virtual = sum - accumulator[0];
+    accumulator[1] += (accumulator[0] - (sum - virtual)) + (x - virtual);
+    accumulator[0] = sum;
+  }
 
 }
@@ -0,0 +1,126 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestGenealogy
+{
+  @Test
+  public void testAgainstFullStorage()
+  {
+    Random rand = new Random(1);
+    final int nParticles = 100;
+    final int nGenerations = 500;
+    
+    // naive storage: all generations
+    List<List<String>> allParticles = new ArrayList<>();
+    List<int []> allAncestors = new ArrayList<>();
+    
+    List<String> particles = new ArrayList<>();
+    for (int i = 0; i < nParticles; i++)
+      particles.add("0_" + i);
+    allParticles.add(particles);
+    Genealogy<String> genealogy = new Genealogy<>(particles);
+    
+    for (int t = 1; t < nGenerations; t++)
+    {
+      int [] ancestors = new int[nParticles];
+      particles = new ArrayList<>();
+      for (int i = 0; i < nParticles; i++)
+      {
+        ancestors[i] = rand.nextInt(nParticles);
+        particles.add(t + "_" + i);
+      }
+      allParticles.add(particles);
+      allAncestors.add(ancestors);
+      genealogy.addGeneration(ancestors, particles);
+    }
+    
+    Assert.assertEquals(nGenerations, genealogy.nGenerations());
+    for (int i = 0; i < nParticles; i++)
+    {
+      int [] indices = genealogy.trajectoryIndices(i);
+      List<String> trajectory = genealogy.trajectory(i);
+      int current = i;
+      for (int t = nGenerations - 1; t >= 0; t--)
+      {
+        Assert.assertEquals(current, indices[t]);
+        Assert.assertEquals(allParticles.get(t).get(current), trajectory.get(t));
+        if (t > 0)
+          current = allAncestors.get(t - 1)[current];
+      }
+    }
+    
+    // path degeneracy: far fewer nodes than nParticles * nGenerations
+    System.out.println("nStoredNodes = " + genealogy.nStoredNodes());
+    Assert.assertTrue(genealogy.nStoredNodes() < 10 * nParticles + nGenerations);
+    int mrca = genealogy.mostRecentCommonAncestorGeneration();
+    Assert.assertTrue(mrca > 0 && mrca < nGenerations - 1);
+    for (int i = 1; i < nParticles; i++)
+      Assert.assertEquals(genealogy.trajectoryIndices(0)[mrca], genealogy.trajectoryIndices(i)[mrca]);
+    Assert.assertTrue(distinctAt(genealogy, mrca + 1, nParticles) > 1);
+  }
+  
+  /**
+   * Generations added from resampled populations should follow their ancestor vectors.
+   */
+  @Test
+  public void testPopulations()
+  {
+    Random rand = new Random(1);
+    final int nParticles = 50, nGenerations = 5;
+    List<String> particles = new ArrayList<>();
+    for (int i = 0; i < nParticles; i++)
+      particles.add("0_" + i);
+    ParticlePopulation<String> population = ParticlePopulation.buildEquallyWeighted(particles, null, 0.0);
+    Genealogy<String> genealogy = new Genealogy<>(population.particles);
+    List<ParticlePopulation<String>> populations = new ArrayList<>();
+    populations.add(population);
+    for (int t = 1; t < nGenerations; t++)
+    {
+      double [] logWeights = new double[nParticles];
+      for (int i = 0; i < nParticles; i++)
+        logWeights[i] = rand.nextGaussian();
+      population = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, population.particles, null, 0.0)
+          .resample(rand, ResamplingScheme.MULTINOMIAL);
+      genealogy.addGeneration(population);
+      populations.add(population);
+    }
+    
+    for (int i = 0; i < nParticles; i++)
+    {
+      int [] indices = genealogy.trajectoryIndices(i);
+      int current = i;
+      for (int t = nGenerations - 1; t >= 0; t--)
+      {
+        Assert.assertEquals(current, indices[t]);
+        Assert.assertTrue(genealogy.trajectory(i).get(t) == populations.get(t).particles.get(current));
+        if (t > 0)
+          current = populations.get(t).getAncestor(current);
+      }
+    }
+    
+    try
+    {
+      genealogy.addGeneration(ParticlePopulation.buildEquallyWeighted(particles, null, 0.0));
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+  }
+  
+  private static int distinctAt(Genealogy<?> genealogy, int generation, int nParticles)
+  {
+    Set<Integer> result = new HashSet<>();
+    for (int i = 0; i < nParticles; i++)
+      result.add(genealogy.trajectoryIndices(i)[generation]);
+    return result.size();
+  }
+}
@@ -0,0 +1,159 @@
+package bayonet.smc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.distributions.Multinomial;
+import bayonet.smc.StreamingBootstrapFilter.LatentSimulator;
+import bayonet.smc.StreamingBootstrapFilter.ObservationDensity;
+
+
+
+public class TestIslandFilter
+{
+  private static final double [][] transitionPrs = new double[][]{{0.8,0.15,0.05},{0.0,0.95,0.05},{0.15,0.15,0.7}};
+  private static final double [][] emissionPrs = transitionPrs;
+  private static final double [] initialPrs = new double[]{0.25, 0.25, 0.5};
+  
+  /**
+   * A small HMM, instantiated in each worker JVM.
+   */
+  public static class HMM implements IslandFilter.ModelFactory<Integer, Integer>
+  {
+    @Override
+    public LatentSimulator<Integer> latentSimulator()
+    {
+      return new LatentSimulator<Integer>() 
+      {
+        @Override
+        public Integer sampleInitial(Random random)
+        {
+          return Multinomial.sampleMultinomial(random, initialPrs);
+        }
+
+        @Override
+        public Integer sampleForwardTransition(Random random, Integer state)
+        {
+          return Multinomial.sampleMultinomial(random, transitionPrs[state]);
+        }
+      };
+    }
+
+    @Override
+    public ObservationDensity<Integer, Integer> observationDensity()
+    {
+      return (latent, emission) -> Math.log(emissionPrs[latent][emission]);
+    }
+
+    @Override
+    public List<Integer> emissions()
+    {
+      Random random = new Random(1);
+      List<Integer> result = new ArrayList<>();
+      int latent = Multinomial.sampleMultinomial(random, initialPrs);
+      for (int i = 0; i < 10; i++)
+      {
+        if (i > 0)
+          latent = Multinomial.sampleMultinomial(random, transitionPrs[latent]);
+        result.add(Multinomial.sampleMultinomial(random, emissionPrs[latent]));
+      }
+      return result;
+    }
+  }
+  
+  /**
+   * @return log(Z), computed with the forward algorithm
+   */
+  private static double exactLogZ(List<Integer> emissions)
+  {
+    double logZ = 0.0;
+    double [] forward = initialPrs.clone();
+    for (int t = 0; t < emissions.size(); t++)
+    {
+      if (t > 0)
+      {
+        double [] next = new double[forward.length];
+        for (int s = 0; s < forward.length; s++)
+          for (int s2 = 0; s2 < forward.length; s2++)
+            next[s2] += forward[s] * transitionPrs[s][s2];
+        forward = next;
+      }
+      double sum = 0.0;
+      for (int s = 0; s < forward.length; s++)
+      {
+        forward[s] *= emissionPrs[s][emissions.get(t)];
+        sum += forward[s];
+      }
+      for (int s = 0; s < forward.length; s++)
+        forward[s] /= sum;
+      logZ += Math.log(sum);
+    }
+    return logZ;
+  }
+  
+  @Test
+  public void testClassFiltering() throws Exception
+  {
+    List<String> prefixes = Arrays.asList("bayonet.");
+    List<Object> particles = new ArrayList<>(Arrays.asList(1, 2.0, "three", new int[]{4}, ResamplingScheme.STRATIFIED));
+    Assert.assertEquals(particles.subList(0, 3), ((List<?>) roundTrip(particles, prefixes)).subList(0, 3));
+    Assert.assertTrue(roundTrip(new RuntimeException("failed"), prefixes) instanceof RuntimeException);
+    
+    // classes outside of the protocol, of bayonet and of the given prefixes are rejected
+    for (Object rejected : new Object[]{new TreeMap<String, String>(), new ArrayList<>(Arrays.asList(new Date()))})
+      try
+      {
+        roundTrip(rejected, prefixes);
+        Assert.fail();
+      }
+      catch (InvalidClassException e) {}
+    Assert.assertEquals(new Date(0), roundTrip(new Date(0), Arrays.asList("java.util.Date")));
+  }
+  
+  private static Object roundTrip(Object object, List<String> allowedPrefixes) throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+    {
+      out.writeObject(object);
+    }
+    try (ObjectInputStream in = new IslandFilter.ClassFilteringInputStream(new ByteArrayInputStream(bytes.toByteArray()), allowedPrefixes))
+    {
+      return in.readObject();
+    }
+  }
+  
+  @Test
+  public void test()
+  {
+    final double truth = exactLogZ(new HMM().emissions());
+    try (IslandFilter filter = new IslandFilter(HMM.class, new Random(1)))
+    {
+      filter.nIslands = 3;
+      filter.exchangeInterval = 2;
+      filter.options.numberOfConcreteParticles = 1000;
+      filter.options.maxNumberOfVirtualParticles = 100000;
+      filter.options.verbose = false;
+      
+      // the workers are reused by the second call
+      for (int i = 0; i < 2; i++)
+      {
+        double approx = filter.sample();
+        System.out.println("islands approx = " + approx + ", truth = " + truth);
+        Assert.assertTrue(Math.abs((truth - approx) / truth) < 0.01);
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package bayonet.smc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestParticlePopulation
+{
+  @Test
+  public void testResampledParticlesAreShared()
+  {
+    Random rand = new Random(1);
+    final int nParticles = 100;
+    List<String> particles = new ArrayList<>();
+    double [] logWeights = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+    {
+      particles.add("particle" + i);
+      logWeights[i] = rand.nextGaussian();
+    }
+    ParticlePopulation<String> population = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, null, 0.0);
+    
+    ParticlePopulation<String> resampled = population.resample(rand, ResamplingScheme.STRATIFIED);
+    ParticlePopulation<String> resampledTwice = resampled.resample(rand, ResamplingScheme.MULTINOMIAL);
+    Assert.assertEquals(nParticles, resampledTwice.nParticles());
+    for (int i = 0; i < nParticles; i++)
+    {
+      Assert.assertTrue(resampled.particles.get(i) == particles.get(resampled.getAncestor(i)));
+      Assert.assertTrue(resampledTwice.particles.get(i) == resampled.particles.get(resampledTwice.getAncestor(i)));
+      Assert.assertEquals(resampledTwice.getAncestor(i), (int) resampledTwice.ancestors.get(i));
+    }
+    
+    // copy on write
+    String first = resampled.particles.get(0);
+    resampledTwice.particles.set(0, "modified");
+    Assert.assertEquals("modified", resampledTwice.particles.get(0));
+    Assert.assertEquals(first, resampled.particles.get(0));
+    Assert.assertEquals(nParticles, particles.size());
+    
+    // modifying the parent's list does not affect the resampled populations
+    List<String> expected = new ArrayList<>(resampled.particles);
+    for (int i = 0; i < nParticles; i++)
+      particles.set(i, "overwritten");
+    particles.clear();
+    Assert.assertEquals(expected, resampled.particles);
+    Assert.assertEquals(expected.get(resampledTwice.getAncestor(1)), resampledTwice.particles.get(1));
+  }
+  
+  @Test
+  public void testAncestors()
+  {
+    List<String> particles = Arrays.asList("a", "b", "c", "d");
+    List<Integer> ancestors = new ArrayList<>(Arrays.asList(2, 0, 0, 1));
+    ParticlePopulation<String> population = ParticlePopulation.buildEquallyWeighted(particles, ancestors, 0.0);
+    Assert.assertEquals(ancestors, population.ancestors);
+    for (int i = 0; i < ancestors.size(); i++)
+      Assert.assertEquals((int) ancestors.get(i), population.getAncestor(i));
+    
+    // the population keeps its own copy, and exposes it read-only
+    ancestors.set(0, 3);
+    Assert.assertEquals(2, population.getAncestor(0));
+    try
+    {
+      population.ancestors.set(0, 3);
+      Assert.fail();
+    }
+    catch (UnsupportedOperationException e) {}
+    Assert.assertEquals(2, population.getAncestor(0));
+    
+    Assert.assertNull(ParticlePopulation.buildEquallyWeighted(particles, null, 0.0).ancestors);
+  }
+  
+  @Test
+  public void testResampleEquallyWeighted()
+  {
+    Random rand = new Random(1);
+    final int nParticles = 100;
+    List<String> particles = new ArrayList<>();
+    for (int i = 0; i < nParticles; i++)
+      particles.add("particle" + i);
+    ParticlePopulation<String> population = ParticlePopulation.buildEquallyWeighted(particles, null, 0.0);
+    for (ResamplingScheme scheme : ResamplingScheme.values())
+    {
+      ParticlePopulation<String> resampled = population.resample(rand, scheme);
+      Assert.assertEquals(nParticles, resampled.nParticles());
+      Assert.assertEquals(nParticles, resampled.ancestors.size());
+      for (int i = 0; i < nParticles; i++)
+      {
+        final int ancestor = resampled.getAncestor(i);
+        Assert.assertEquals(ancestor, (int) resampled.ancestors.get(i));
+        Assert.assertTrue(resampled.particles.get(i) == particles.get(ancestor));
+        if (i > 0)
+          Assert.assertTrue(resampled.getAncestor(i - 1) <= ancestor);
+        // with equal weights, these schemes keep each particle exactly once
+        if (scheme != ResamplingScheme.MULTINOMIAL)
+          Assert.assertEquals(i, ancestor);
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package bayonet.smc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestParticleStore
+{
+  private static final int dimension = 3;
+  private static final ParticleCodec<double[]> codec = ParticleCodec.doubleArray(dimension);
+  
+  private static double [] particle(int i)
+  {
+    return new double[]{i, -i, i * 0.5};
+  }
+  
+  /**
+   * Small chunks, so that records span several buffers.
+   */
+  private static ParticleStore<double[]> smallChunks(int nParticles)
+  {
+    return new ParticleStore<>(codec, nParticles, null, 3 * (8 + 8 * dimension));
+  }
+  
+  @Test
+  public void testResampleAndGather()
+  {
+    final int n = 100;
+    Random random = new Random(1);
+    ParticleStore<double[]> store = smallChunks(n);
+    double [] logWeights = new double[n];
+    for (int i = 0; i < n; i++)
+    {
+      store.set(i, particle(i));
+      logWeights[i] = 500.0 + 3.0 * random.nextGaussian();
+      store.setLogWeight(i, logWeights[i]);
+    }
+    for (int i = 0; i < n; i++)
+    {
+      Assert.assertArrayEquals(particle(i), store.get(i), 0.0);
+      Assert.assertEquals(-i, store.getDouble(i, 8), 0.0);
+    }
+    
+    ParticlePopulation<double[]> reference = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights.clone(), store.asList(), null, 0.0);
+    Assert.assertEquals(reference.getESS(), store.ess(), 1e-8);
+    Assert.assertArrayEquals(reference.getLogWeights(), logWeights, 1e-8);
+    
+    ParticleStore<double[]> destination = smallChunks(n);
+    double logSum = store.resample(new Random(2), ResamplingScheme.STRATIFIED, destination);
+    Assert.assertEquals(reference.logScaling, logSum, 1e-8);
+    
+    ParticlePopulation<double[]> resampled = reference.resample(new Random(2), ResamplingScheme.STRATIFIED);
+    for (int i = 0; i < n; i++)
+    {
+      Assert.assertArrayEquals(resampled.particles.get(i), destination.get(i), 0.0);
+      Assert.assertEquals(0.0, destination.getLogWeight(i), 0.0);
+    }
+    
+    store.normalizeWeights();
+    for (int i = 0; i < n; i++)
+      Assert.assertEquals(reference.getNormalizedWeight(i), Math.exp(store.getLogWeight(i)), 1e-12);
+  }
+  
+  @Test
+  public void testMemoryMapped() throws Exception
+  {
+    final int n = 1000;
+    Path file = Files.createTempFile("particles", ".bin");
+    try
+    {
+      try (ParticleStore<double[]> store = ParticleStore.memoryMapped(codec, n, file))
+      {
+        for (int i = 0; i < n; i++)
+          store.set(i, particle(i));
+      }
+      Assert.assertEquals(n * (8 + 8 * dimension), Files.size(file));
+      ParticleStore<double[]> reopened = ParticleStore.memoryMapped(codec, n, file);
+      try
+      {
+        for (int i = 0; i < n; i++)
+          Assert.assertArrayEquals(particle(i), reopened.get(i), 0.0);
+      }
+      finally
+      {
+        reopened.close();
+      }
+      try
+      {
+        reopened.get(0);
+        Assert.fail();
+      }
+      catch (RuntimeException e)
+      {
+        Assert.assertEquals("The store was closed", e.getMessage());
+      }
+    }
+    finally
+    {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package bayonet.smc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestPermutationStream
+{
+  /**
+   * Each cycle of size() pops should be a permutation, and each index should be
+   * equally likely at each position of a cycle.
+   */
+  @Test
+  public void testUniformPermutations()
+  {
+    final int size = 5, nCycles = 40000;
+    PermutationStream stream = new PermutationStream(size, new Random(1));
+    int [][] counts = new int[size][size];
+    for (int cycle = 0; cycle < nCycles; cycle++)
+    {
+      boolean [] seen = new boolean[size];
+      for (int position = 0; position < size; position++)
+      {
+        final int index = stream.popIndex();
+        Assert.assertTrue(index >= 0 && index < size);
+        Assert.assertFalse(seen[index]);
+        seen[index] = true;
+        counts[position][index]++;
+      }
+    }
+    Assert.assertEquals(size * nCycles, stream.nCalls());
+
+    double chiSquare = 0.0;
+    final double expected = ((double) nCycles) / size;
+    for (int position = 0; position < size; position++)
+      for (int index = 0; index < size; index++)
+        chiSquare += Math.pow(counts[position][index] - expected, 2) / expected;
+    // 0.999 quantile of the chi-square with size * (size - 1) = 20 degrees of freedom
+    Assert.assertTrue("chi square = " + chiSquare, chiSquare < 45.31);
+  }
+
+  @Test
+  public void testReplay()
+  {
+    PermutationStream first = new PermutationStream(7, new Random(42)), second = new PermutationStream(7, new Random(42));
+    for (int i = 0; i < 1000; i++)
+      Assert.assertEquals(first.popIndex(), second.popIndex());
+  }
+}
@@ -0,0 +1,58 @@
+package bayonet.smc;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.distributions.Multinomial;
+
+
+
+public class TestResamplingScheme
+{
+  @Test
+  public void testUnbiased()
+  {
+    Random rand = new Random(1);
+    final int nParticles = 10;
+    final int nReplicates = 10000;
+    double [] w = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+      w[i] = rand.nextDouble();
+    w[3] = 0.0;
+    Multinomial.normalize(w);
+    List<Integer> particles = Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    
+    for (ResamplingScheme scheme : ResamplingScheme.values())
+    {
+      double [] averageCounts = new double[nParticles];
+      for (int r = 0; r < nReplicates; r++)
+      {
+        double [] darts = scheme.getSortedCumulativeProbabilities(rand, w, nParticles);
+        for (int i = 1; i < darts.length; i++)
+          Assert.assertTrue(darts[i-1] <= darts[i]);
+        for (int ancestor : scheme.resample(rand, w, particles).ancestors)
+          averageCounts[ancestor] += 1.0 / nReplicates;
+      }
+      for (int i = 0; i < nParticles; i++)
+        Assert.assertEquals(scheme + " particle " + i, nParticles * w[i], averageCounts[i], 0.05);
+    }
+  }
+  
+  /**
+   * With weights summing to slightly more than one, the deterministic copies of residual 
+   * resampling can exceed the number of darts.
+   */
+  @Test
+  public void testResidualRoundOff()
+  {
+    final int nSamples = 4_000_000;
+    final double [] w = new double[]{0.5 + 3e-7, 0.5 + 3e-7};
+    int [] counts = ResamplingScheme.RESIDUAL.offspringCounts(new Random(1), w, nSamples);
+    Assert.assertEquals(nSamples, counts[0] + counts[1]);
+    Assert.assertEquals(nSamples, ResamplingScheme.RESIDUAL.resampleAncestors(new Random(1), w, nSamples).length);
+  }
+}
@@ -1,8 +1,14 @@
 package bayonet.smc;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 import org.jgrapht.UndirectedGraph;
 import org.junit.Assert;
@@ -12,8 +18,13 @@ import bayonet.distributions.Multinomial;
 import bayonet.graphs.GraphUtils;
 import bayonet.marginal.DiscreteFactorGraph;
 import bayonet.marginal.algo.SumProduct;
+import bayonet.smc.StreamingBootstrapFilter.AsyncLatentSimulator;
+import bayonet.smc.StreamingBootstrapFilter.BatchObservationDensity;
+import bayonet.smc.StreamingBootstrapFilter.GenerationResult;
 import bayonet.smc.StreamingBootstrapFilter.LatentSimulator;
 import bayonet.smc.StreamingBootstrapFilter.ObservationDensity;
+import bayonet.smc.StreamingBootstrapReplicas.ReplicaEstimates;
+import bayonet.smc.StreamingPropagator.StopReason;
 
 
 
@@ -87,6 +98,371 @@ public class TestStreamingBootstrap
 //    }
   }
 
+  @Test
+  public void testParallel()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    double truth = new SumProduct<>(createHMM(observations)).logNormalization();
+    
+    double [] approximations = new double[2];
+    for (int i = 0; i < approximations.length; i++)
+    {
+      StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , observationDensity , observations);
+      lbf.options.maxNumberOfVirtualParticles = 100000;
+      lbf.options.numberOfConcreteParticles = 1000;
+      lbf.options.nThreads = 4;
+      lbf.options.virtualParticlesPerBlock = 500;
+      approximations[i] = lbf.sample();
+    }
+    System.out.println("parallel approx = " + approximations[0]);
+    
+    // deterministic given the seed and number of threads
+    Assert.assertTrue(approximations[0] == approximations[1]);
+    Assert.assertTrue(Math.abs((truth - approximations[0]) / truth) < 0.01);
+  }
+
+  @Test
+  public void testReplicas()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    double truth = new SumProduct<>(createHMM(observations)).logNormalization();
+    
+    // the estimates should not depend on the number of threads
+    ReplicaEstimates [] estimates = new ReplicaEstimates[2];
+    for (int i = 0; i < estimates.length; i++)
+    {
+      StreamingBootstrapReplicas<Integer, Integer> replicas = new StreamingBootstrapReplicas<>(transitionDensity, observationDensity, observations);
+      replicas.options.numberOfConcreteParticles = 100;
+      estimates[i] = replicas.run(new bayonet.distributions.Random(1), 20, i == 0 ? 1 : 4);
+    }
+    Assert.assertArrayEquals(estimates[0].logZEstimates, estimates[1].logZEstimates, 0.0);
+    
+    // one listener per replica, each seeing the generations of its replica in order
+    final int nReplicas = 5;
+    List<List<PropagationMetrics>> metrics = new ArrayList<>();
+    for (int r = 0; r < nReplicas; r++)
+      metrics.add(Collections.synchronizedList(new ArrayList<>()));
+    StreamingBootstrapReplicas<Integer, Integer> replicas = new StreamingBootstrapReplicas<>(transitionDensity, observationDensity, observations);
+    replicas.options.numberOfConcreteParticles = 100;
+    replicas.replicaListeners = r -> metrics.get(r)::add;
+    ReplicaEstimates withListeners = replicas.run(new bayonet.distributions.Random(1), nReplicas, 4);
+    for (int r = 0; r < nReplicas; r++)
+    {
+      Assert.assertEquals(estimates[0].logZEstimates[r], withListeners.logZEstimates[r], 0.0);
+      Assert.assertEquals(observations.size(), metrics.get(r).size());
+    }
+    replicas.options.listener = metrics.get(0)::add;
+    try
+    {
+      replicas.run(new bayonet.distributions.Random(1), nReplicas, 4);
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+    
+    ReplicaEstimates estimate = estimates[0];
+    System.out.println("replicas: meanLogZ = " + estimate.meanLogZ() + " +/- " + estimate.meanLogZStandardError() 
+        + ", logMeanExp = " + estimate.logMeanExp() + " +/- " + estimate.logMeanExpStandardError());
+    Assert.assertEquals(truth, estimate.meanLogZ(), 4.0 * estimate.meanLogZStandardError());
+    Assert.assertEquals(truth, estimate.logMeanExp(), 4.0 * estimate.logMeanExpStandardError());
+    
+    // no standard error from a single replica
+    ReplicaEstimates single = new ReplicaEstimates(new double[]{truth});
+    Assert.assertEquals(truth, single.meanLogZ(), 0.0);
+    Assert.assertEquals(truth, single.logMeanExp(), 1e-12);
+    try
+    {
+      single.meanLogZStandardError();
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+    try
+    {
+      single.logMeanExpStandardError();
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+  }
+
+  @Test
+  public void testAdaptiveResampling()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    double truth = new SumProduct<>(createHMM(observations)).logNormalization();
+    
+    StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , observationDensity , observations);
+    lbf.options.maxNumberOfVirtualParticles = 100000;
+    lbf.options.numberOfConcreteParticles = 1000;
+    lbf.adaptiveResampling = true;
+    double approx = lbf.sample();
+    System.out.println("adaptive approx = " + approx);
+    
+    Assert.assertTrue(Math.abs((truth - approx) / truth) < 0.01);
+  }
+
+  @Test
+  public void testReservoir()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    double truth = new SumProduct<>(createHMM(observations)).logNormalization();
+    
+    for (int nThreads : new int[]{1, 4})
+    {
+      StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , observationDensity , observations);
+      lbf.options.maxNumberOfVirtualParticles = 100000;
+      lbf.options.numberOfConcreteParticles = 1000;
+      lbf.options.nThreads = nThreads;
+      lbf.options.virtualParticlesPerBlock = 500;
+      lbf.options.reservoirMemoryBudget = Long.MAX_VALUE / 2;
+      double approx = lbf.sample();
+      System.out.println("reservoir approx (nThreads=" + nThreads + ") = " + approx);
+      
+      Assert.assertTrue(Math.abs((truth - approx) / truth) < 0.01);
+    }
+  }
+
+  @Test
+  public void testOnline()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , observationDensity , observations);
+    lbf.options.numberOfConcreteParticles = 100;
+    lbf.options.verbose = false;
+    final double batch = lbf.sample();
+    
+    // same seeds, emissions pulled one at a time from an unbounded stream
+    StreamingBootstrapFilter<Integer, Integer> online = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , observationDensity , new Random(1));
+    online.options.numberOfConcreteParticles = 100;
+    online.options.verbose = false;
+    final Random random = new Random(1);
+    Iterator<Integer> stream = new Iterator<Integer>() 
+    {
+      int latent = -1;
+      
+      @Override
+      public boolean hasNext()
+      {
+        return true;
+      }
+
+      @Override
+      public Integer next()
+      {
+        latent = latent == -1 ? 
+            transitionDensity.sampleInitial(random) : 
+            transitionDensity.sampleForwardTransition(random, latent);
+        return Multinomial.sampleMultinomial(random, emissionPrs[latent]);
+      }
+    };
+    Iterator<GenerationResult<Integer>> results = online.online(stream);
+    for (int t = 0; t < 1000; t++)
+    {
+      GenerationResult<Integer> result = results.next();
+      Assert.assertEquals(t, result.generation);
+      Assert.assertEquals(100, result.population.nParticles());
+      if (t == len - 1)
+        Assert.assertEquals(batch, result.logZ, 0.0);
+    }
+  }
+
+  /**
+   * With a tiny generation time budget and no other stopping criterion, each generation
+   * should stop early, and still return a valid population.
+   */
+  @Test
+  public void testGenerationTimeBudget()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , observationDensity , new Random(1));
+    lbf.options.numberOfConcreteParticles = 100;
+    lbf.options.targetedRelativeESS = Double.POSITIVE_INFINITY;
+    lbf.options.maxNumberOfVirtualParticles = Integer.MAX_VALUE;
+    lbf.generationTimeBudgetMillis = 1;
+    Iterator<GenerationResult<Integer>> results = lbf.online(observations.iterator());
+    for (int t = 0; t < len; t++)
+    {
+      GenerationResult<Integer> result = results.next();
+      if (t == 0)
+        Assert.assertEquals(StopReason.WALL_CLOCK_BUDGET, result.stopReason);
+      else
+        // later generations are also capped by the number of virtual particles affordable
+        Assert.assertTrue(
+            result.stopReason == StopReason.WALL_CLOCK_BUDGET || 
+            result.stopReason == StopReason.MAX_VIRTUAL_PARTICLES);
+      Assert.assertTrue(result.nProposed < Integer.MAX_VALUE);
+      Assert.assertTrue(result.latencyNanos < 5_000_000_000L);
+      Assert.assertEquals(100, result.population.nParticles());
+      Assert.assertTrue(Double.isFinite(result.logZIncrement));
+      Assert.assertTrue(Double.isFinite(result.logZ));
+    }
+    Assert.assertFalse(results.hasNext());
+  }
+
+  @Test
+  public void testBatchObservationDensity()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    BatchObservationDensity<Integer, Integer> batchDensity = new BatchObservationDensity<Integer, Integer>() 
+    {
+      @Override
+      public double logDensity(Integer latent, Integer emission)
+      {
+        return observationDensity.logDensity(latent, emission);
+      }
+
+      @Override
+      public void logDensities(List<Integer> latents, Integer emission, double[] logDensities)
+      {
+        for (int i = 0; i < latents.size(); i++)
+          logDensities[i] = Math.log(emissionPrs[latents.get(i)][emission]);
+      }
+    };
+    
+    // batching should not change the result
+    for (boolean adaptive : new boolean[]{false, true})
+    {
+      double [] approximations = new double[2];
+      for (int i = 0; i < approximations.length; i++)
+      {
+        StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(transitionDensity , i == 0 ? observationDensity : batchDensity, observations);
+        lbf.options.numberOfConcreteParticles = 100;
+        lbf.options.verbose = false;
+        lbf.adaptiveResampling = adaptive;
+        lbf.observationBatchSize = 7;
+        approximations[i] = lbf.sample();
+      }
+      Assert.assertEquals(approximations[0], approximations[1], 0.0);
+    }
+  }
+
+  @Test
+  public void testAsyncSimulator()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    double truth = new SumProduct<>(createHMM(observations)).logNormalization();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    AsyncLatentSimulator<Integer> asyncSimulator = AsyncLatentSimulator.fromBlocking(transitionDensity, executor);
+    
+    try
+    {
+      for (boolean adaptive : new boolean[]{false, true})
+      {
+        // the result should not depend on the completion order nor on the number of simulations in flight
+        double [] approximations = new double[3];
+        for (int i = 0; i < approximations.length; i++)
+        {
+          StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(asyncSimulator, observationDensity, observations, new Random(1));
+          lbf.options.maxNumberOfVirtualParticles = 100000;
+          lbf.options.numberOfConcreteParticles = 1000;
+          lbf.options.nThreads = 4;
+          lbf.options.virtualParticlesPerBlock = 500;
+          lbf.adaptiveResampling = adaptive;
+          lbf.maxSimulationsInFlight = i == 2 ? 7 : 64;
+          approximations[i] = lbf.sample();
+        }
+        System.out.println("async approx = " + approximations[0]);
+        Assert.assertEquals(approximations[0], approximations[1], 0.0);
+        Assert.assertEquals(approximations[0], approximations[2], 0.0);
+        Assert.assertTrue(Math.abs((truth - approximations[0]) / truth) < 0.01);
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * The simulations started ahead and not needed should be cancelled, at the end of 
+   * each generation as well as when a simulation fails.
+   */
+  @Test
+  public void testPendingSimulationsCancelled()
+  {
+    List<Integer> observations = generateData(new Random(1));
+    for (int failingCall : new int[]{-1, 5000})
+      for (boolean adaptive : new boolean[]{false, true})
+      {
+        List<LazySimulation> started = new ArrayList<>();
+        AsyncLatentSimulator<Integer> asyncSimulator = new AsyncLatentSimulator<Integer>()
+        {
+          @Override
+          public CompletableFuture<Integer> sampleInitial(long seed)
+          {
+            return start(() -> transitionDensity.sampleInitial(new Random(seed)));
+          }
+          
+          @Override
+          public CompletableFuture<Integer> sampleForwardTransition(long seed, Integer state)
+          {
+            return start(() -> transitionDensity.sampleForwardTransition(new Random(seed), state));
+          }
+          
+          private CompletableFuture<Integer> start(Supplier<Integer> simulation)
+          {
+            final boolean fails = started.size() == failingCall;
+            LazySimulation result = new LazySimulation(() -> 
+            {
+              if (fails)
+                throw new RuntimeException("simulation failed");
+              return simulation.get();
+            });
+            started.add(result);
+            return result;
+          }
+        };
+        StreamingBootstrapFilter<Integer, Integer> lbf = new StreamingBootstrapFilter<Integer, Integer>(asyncSimulator, observationDensity, observations, new Random(1));
+        lbf.options.numberOfConcreteParticles = 1000;
+        lbf.options.maxNumberOfVirtualParticles = 2000;
+        lbf.adaptiveResampling = adaptive;
+        lbf.maxSimulationsInFlight = 16;
+        try
+        {
+          lbf.sample();
+          Assert.assertTrue(failingCall < 0);
+        }
+        catch (RuntimeException e)
+        {
+          Assert.assertEquals("simulation failed", e.getMessage());
+        }
+        int nCancelled = 0;
+        for (LazySimulation simulation : started)
+        {
+          Assert.assertTrue(simulation.isDone());
+          if (simulation.isCancelled())
+            nCancelled++;
+        }
+        Assert.assertTrue(nCancelled > 0);
+      }
+  }
+  
+  /**
+   * A simulation only running when its result is requested.
+   */
+  private static class LazySimulation extends CompletableFuture<Integer>
+  {
+    private final Supplier<Integer> simulation;
+    
+    private LazySimulation(Supplier<Integer> simulation)
+    {
+      this.simulation = simulation;
+    }
+    
+    @Override
+    public Integer join()
+    {
+      if (!isDone())
+        try
+        {
+          complete(simulation.get());
+        }
+        catch (RuntimeException e)
+        {
+          completeExceptionally(e);
+        }
+      return super.join();
+    }
+  }
+
   private static List<Integer> generateData(Random random)
   {
     List<Integer> result = new ArrayList<>();
@@ -0,0 +1,547 @@
+package bayonet.smc;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.distributions.Philox4x32;
+
+import bayonet.smc.StreamingPropagator.PropagationResult;
+import bayonet.smc.StreamingPropagator.StopReason;
+
+
+
+public class TestStreamingPropagator
+{
+  /**
+   * Proposes uniform numbers, weighted by exp(-10 x).
+   */
+  private static class ExponentialTiltProposal implements ProposalWithRestart<Double>
+  {
+    private final long seed;
+    private final Random random;
+    private int nCalls = 0;
+    
+    private ExponentialTiltProposal(long seed)
+    {
+      this.seed = seed;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public Pair<Double, Double> nextLogWeightSamplePair()
+    {
+      nCalls++;
+      final double x = random.nextDouble();
+      return Pair.of(-10.0 * x, x);
+    }
+
+    @Override
+    public int numberOfCalls()
+    {
+      return nCalls;
+    }
+
+    @Override
+    public ProposalWithRestart<Double> restart()
+    {
+      return new ExponentialTiltProposal(seed);
+    }
+    
+    @Override
+    public ProposalWithRestart<Double> subStream(int streamIndex)
+    {
+      return new ExponentialTiltProposal(seed * 31 + streamIndex);
+    }
+  }
+  
+  /**
+   * Same target as ExponentialTiltProposal, but particle g (counting from the start of 
+   * the main stream) is drawn from stream g of a counter-based generator, and sub-stream 
+   * i starts at particle i * blockSize. Hence the virtual particles are the same whether 
+   * they are proposed in blocks or not.
+   */
+  private static class CounterBasedTiltProposal implements ProposalWithRestart<Double>
+  {
+    private final long seed;
+    private final int blockSize;
+    private final long firstIndex;
+    private int nCalls = 0;
+    
+    private CounterBasedTiltProposal(long seed, int blockSize, long firstIndex)
+    {
+      this.seed = seed;
+      this.blockSize = blockSize;
+      this.firstIndex = firstIndex;
+    }
+
+    @Override
+    public Pair<Double, Double> nextLogWeightSamplePair()
+    {
+      final double x = new Philox4x32(seed, firstIndex + nCalls++).nextDouble();
+      return Pair.of(-10.0 * x, x);
+    }
+
+    @Override
+    public int numberOfCalls()
+    {
+      return nCalls;
+    }
+
+    @Override
+    public ProposalWithRestart<Double> restart()
+    {
+      return new CounterBasedTiltProposal(seed, blockSize, firstIndex);
+    }
+    
+    @Override
+    public ProposalWithRestart<Double> subStream(int streamIndex)
+    {
+      return new CounterBasedTiltProposal(seed, blockSize, ((long) streamIndex) * blockSize);
+    }
+  }
+  
+  /**
+   * Same as ExponentialTiltProposal, without boxing the weights.
+   */
+  private static class PrimitiveTiltProposal implements PrimitiveProposalWithRestart<Double>
+  {
+    private final long seed;
+    private final Random random;
+    private int nCalls = 0;
+    private double lastSample = Double.NaN;
+    
+    private PrimitiveTiltProposal(long seed)
+    {
+      this.seed = seed;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public double nextLogWeight()
+    {
+      nCalls++;
+      lastSample = random.nextDouble();
+      return -10.0 * lastSample;
+    }
+
+    @Override
+    public Double lastSample()
+    {
+      return lastSample;
+    }
+
+    @Override
+    public int numberOfCalls()
+    {
+      return nCalls;
+    }
+
+    @Override
+    public ProposalWithRestart<Double> restart()
+    {
+      return new PrimitiveTiltProposal(seed);
+    }
+    
+    @Override
+    public ProposalWithRestart<Double> subStream(int streamIndex)
+    {
+      return new PrimitiveTiltProposal(seed * 31 + streamIndex);
+    }
+  }
+  
+  /**
+   * Hides that a proposal is a PrimitiveProposalWithRestart, so that StreamingPropagator 
+   * goes through nextLogWeightSamplePair().
+   */
+  private static class PairProposal<S> implements ProposalWithRestart<S>
+  {
+    private final ProposalWithRestart<S> proposal;
+    
+    private PairProposal(ProposalWithRestart<S> proposal)
+    {
+      this.proposal = proposal;
+    }
+
+    @Override
+    public Pair<Double, S> nextLogWeightSamplePair()
+    {
+      return proposal.nextLogWeightSamplePair();
+    }
+
+    @Override
+    public int numberOfCalls()
+    {
+      return proposal.numberOfCalls();
+    }
+
+    @Override
+    public ProposalWithRestart<S> restart()
+    {
+      return new PairProposal<>(proposal.restart());
+    }
+    
+    @Override
+    public ProposalWithRestart<S> subStream(int streamIndex)
+    {
+      return new PairProposal<>(proposal.subStream(streamIndex));
+    }
+  }
+  
+  private static StreamingPropagator<Double> propagator(int nThreads)
+  {
+    StreamingPropagator<Double> result = new StreamingPropagator<>(new ExponentialTiltProposal(1));
+    result.options.verbose = false;
+    result.options.numberOfConcreteParticles = 100;
+    result.options.nThreads = nThreads;
+    result.options.virtualParticlesPerBlock = 1000;
+    return result;
+  }
+  
+  @Test
+  public void testStopReasons()
+  {
+    for (int nThreads : new int[]{1, 4})
+    {
+      StreamingPropagator<Double> propagator = propagator(nThreads);
+      PropagationResult<Double> result = propagator.execute();
+      Assert.assertEquals(StopReason.TARGETED_ESS, result.stopReason);
+      Assert.assertEquals(100, result.samples.size());
+      
+      propagator = propagator(nThreads);
+      propagator.options.targetedRelativeESS = Double.POSITIVE_INFINITY;
+      propagator.options.maxNumberOfVirtualParticles = 5000;
+      result = propagator.execute();
+      Assert.assertEquals(StopReason.MAX_VIRTUAL_PARTICLES, result.stopReason);
+      Assert.assertEquals(5000, result.population.getNumberOfParticles());
+    }
+  }
+  
+  /**
+   * Weights are buffered when proposing serially: the growth should still stop at the 
+   * first particle reaching the targeted ESS.
+   */
+  @Test
+  public void testBatchedProposal()
+  {
+    StreamingPropagator<Double> propagator = propagator(1);
+    propagator.options.targetedRelativeESS = 30.0;
+    PropagationResult<Double> result = propagator.execute();
+    
+    CompactPopulation reference = new CompactPopulation();
+    ProposalWithRestart<Double> proposal = new ExponentialTiltProposal(1);
+    while (reference.getNumberOfParticles() < 100 || reference.ess() / 100 < 30.0)
+      reference.insertLogWeight(proposal.nextLogWeight());
+    Assert.assertEquals(StopReason.TARGETED_ESS, result.stopReason);
+    Assert.assertTrue(reference.getNumberOfParticles() > 1024);
+    Assert.assertEquals(reference.getNumberOfParticles(), result.population.getNumberOfParticles());
+    Assert.assertEquals(reference.logZEstimate(), result.population.logZEstimate(), 1e-10);
+  }
+  
+  /**
+   * With the same virtual particles, checkpointed replay should resample the same 
+   * particles as a plain replay, while replaying only the blocks hit by a dart.
+   */
+  @Test
+  public void testCheckpointedReplay()
+  {
+    final int blockSize = 1000, nBlocks = 20, nConcrete = 5;
+    List<PropagationResult<Double>> results = new ArrayList<>();
+    List<PropagationMetrics> metrics = new ArrayList<>();
+    for (boolean checkpointed : new boolean[]{false, true})
+    {
+      StreamingPropagator<Double> propagator = new StreamingPropagator<>(new CounterBasedTiltProposal(1, blockSize, 0));
+      propagator.options.numberOfConcreteParticles = nConcrete;
+      propagator.options.targetedRelativeESS = Double.POSITIVE_INFINITY;
+      propagator.options.maxNumberOfVirtualParticles = blockSize * nBlocks;
+      propagator.options.virtualParticlesPerBlock = blockSize;
+      propagator.options.checkpointedReplay = checkpointed;
+      propagator.options.resamplingRandom = new Random(1);
+      propagator.options.listener = metrics::add;
+      results.add(propagator.execute());
+    }
+    PropagationResult<Double> plain = results.get(0), checkpointed = results.get(1);
+    Assert.assertEquals(blockSize * nBlocks, plain.population.getNumberOfParticles());
+    Assert.assertEquals(blockSize * nBlocks, checkpointed.population.getNumberOfParticles());
+    Assert.assertEquals(plain.samples, checkpointed.samples);
+    Assert.assertEquals(plain.population.logZEstimate(), checkpointed.population.logZEstimate(), 1e-10);
+    // the batches of weights have different boundaries, and NumericalUtils.logAdd() neglects terms smaller by a factor exp(-20)
+    Assert.assertEquals(plain.population.ess(), checkpointed.population.ess(), 1e-4 * plain.population.ess());
+    
+    // plain replay goes through all the particles, checkpointed replay through at most one block per dart
+    Assert.assertEquals(blockSize * nBlocks, metrics.get(0).nReplayedCalls);
+    Assert.assertTrue(metrics.get(1).nReplayedCalls <= blockSize * nConcrete);
+    Assert.assertEquals(0, metrics.get(1).nReplayedCalls % blockSize);
+  }
+  
+  /**
+   * A PrimitiveProposalWithRestart should give the same weights, samples and number 
+   * of calls through nextLogWeight()/lastSample() as through nextLogWeightSamplePair().
+   */
+  @Test
+  public void testPrimitiveProposal()
+  {
+    PrimitiveTiltProposal primitive = new PrimitiveTiltProposal(1), pairs = new PrimitiveTiltProposal(1);
+    for (int i = 0; i < 100; i++)
+    {
+      final double logWeight = primitive.nextLogWeight();
+      final Pair<Double, Double> pair = pairs.nextLogWeightSamplePair();
+      Assert.assertEquals(logWeight, pair.getLeft(), 0.0);
+      Assert.assertEquals(primitive.lastSample(), pair.getRight());
+      Assert.assertEquals(pair.getRight(), pairs.lastSample());
+      Assert.assertEquals(primitive.numberOfCalls(), pairs.numberOfCalls());
+    }
+    
+    // under replay: StreamingPropagator uses lastSample() for the first, and the pairs for the second
+    for (int nThreads : new int[]{1, 4})
+    {
+      List<PropagationResult<Double>> results = new ArrayList<>();
+      List<PropagationMetrics> metrics = new ArrayList<>();
+      List<ProposalWithRestart<Double>> proposals = new ArrayList<>();
+      for (boolean usePairs : new boolean[]{false, true})
+      {
+        ProposalWithRestart<Double> proposal = usePairs ? new PairProposal<>(new PrimitiveTiltProposal(1)) : new PrimitiveTiltProposal(1);
+        StreamingPropagator<Double> propagator = new StreamingPropagator<>(proposal);
+        propagator.options.numberOfConcreteParticles = 100;
+        propagator.options.nThreads = nThreads;
+        propagator.options.virtualParticlesPerBlock = 1000;
+        propagator.options.resamplingRandom = new Random(1);
+        propagator.options.listener = metrics::add;
+        results.add(propagator.execute());
+        proposals.add(proposal);
+      }
+      PropagationResult<Double> primitiveResult = results.get(0), pairResult = results.get(1);
+      Assert.assertEquals(primitiveResult.samples, pairResult.samples);
+      Assert.assertEquals(primitiveResult.population.getNumberOfParticles(), pairResult.population.getNumberOfParticles());
+      Assert.assertEquals(primitiveResult.population.getLogSum(), pairResult.population.getLogSum(), 0.0);
+      Assert.assertEquals(primitiveResult.population.getLogSumOfSquares(), pairResult.population.getLogSumOfSquares(), 0.0);
+      Assert.assertEquals(proposals.get(0).numberOfCalls(), proposals.get(1).numberOfCalls());
+      Assert.assertEquals(metrics.get(0).nReplayedCalls, metrics.get(1).nReplayedCalls);
+    }
+  }
+  
+  @Test
+  public void testResidualRejected()
+  {
+    StreamingPropagator<Double> propagator = propagator(1);
+    propagator.options.resamplingScheme = ResamplingScheme.RESIDUAL;
+    try
+    {
+      propagator.execute();
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage().contains("RESIDUAL"));
+    }
+    
+    // the scheme is not used in RESERVOIR mode
+    propagator = propagator(1);
+    propagator.options.resamplingScheme = ResamplingScheme.RESIDUAL;
+    propagator.options.propagationMode = StreamingPropagator.PropagationMode.RESERVOIR;
+    Assert.assertEquals(100, propagator.execute().samples.size());
+  }
+  
+  /**
+   * Asynchronous processing should see the same concrete particles, in the same order, 
+   * and a failing processor should make execute() fail.
+   */
+  @Test
+  public void testAsyncProcessor()
+  {
+    List<List<Double>> processed = new ArrayList<>();
+    for (int capacity : new int[]{0, 8})
+    {
+      List<Double> current = Collections.synchronizedList(new ArrayList<Double>());
+      StreamingPropagator<Double> propagator = propagator(1);
+      propagator.options.processorQueueCapacity = capacity;
+      propagator.addProcessor(current::add);
+      propagator.execute();
+      processed.add(current);
+    }
+    Assert.assertEquals(100, processed.get(0).size());
+    Assert.assertEquals(processed.get(0), processed.get(1));
+    
+    StreamingPropagator<Double> propagator = propagator(1);
+    propagator.options.processorQueueCapacity = 8;
+    propagator.addProcessor(x -> { throw new IllegalStateException("processor failed"); });
+    try
+    {
+      propagator.execute();
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+  
+  @Test
+  public void testTimeBudgets()
+  {
+    for (int nThreads : new int[]{1, 4})
+    {
+      StreamingPropagator<Double> propagator = propagator(nThreads);
+      propagator.options.targetedRelativeESS = Double.POSITIVE_INFINITY;
+      propagator.options.maxNumberOfVirtualParticles = Integer.MAX_VALUE;
+      propagator.options.timeBudgetMillis = 50;
+      PropagationResult<Double> result = propagator.execute();
+      Assert.assertEquals(StopReason.WALL_CLOCK_BUDGET, result.stopReason);
+      Assert.assertEquals(100, result.samples.size());
+      Assert.assertTrue(result.elapsedNanos < 5_000_000_000L);
+      
+      propagator = propagator(nThreads);
+      propagator.options.targetedRelativeESS = Double.POSITIVE_INFINITY;
+      propagator.options.maxNumberOfVirtualParticles = Integer.MAX_VALUE;
+      propagator.options.cpuTimeBudgetMillis = 50;
+      result = propagator.execute();
+      Assert.assertEquals(StopReason.CPU_BUDGET, result.stopReason);
+      Assert.assertEquals(100, result.samples.size());
+    }
+  }
+  
+  /**
+   * With an expensive proposal, the wall-clock budget should be checked after each call.
+   */
+  @Test
+  public void testWallClockBudgetWithSlowProposal()
+  {
+    StreamingPropagator<Double> propagator = new StreamingPropagator<>(new ExponentialTiltProposal(1)
+    {
+      @Override
+      public Pair<Double, Double> nextLogWeightSamplePair()
+      {
+        try
+        {
+          Thread.sleep(2);
+        }
+        catch (InterruptedException e)
+        {
+          throw new RuntimeException(e);
+        }
+        return super.nextLogWeightSamplePair();
+      }
+    });
+    propagator.options.numberOfConcreteParticles = 100;
+    propagator.options.timeBudgetMillis = 20;
+    PropagationResult<Double> result = propagator.execute();
+    Assert.assertEquals(StopReason.WALL_CLOCK_BUDGET, result.stopReason);
+    // at 2ms per call, about 10 calls fit in the budget
+    Assert.assertTrue(result.population.getNumberOfParticles() <= 11);
+    Assert.assertEquals(100, result.samples.size());
+  }
+  
+  /**
+   * The mean of a uniform tilted by exp(-10 x), estimated from all the virtual particles.
+   */
+  @Test
+  public void testAccumulator()
+  {
+    final double exact = 0.1 - Math.exp(-10.0) / (1.0 - Math.exp(-10.0));
+    for (int nThreads : new int[]{1, 4})
+    {
+      StreamingPropagator<Double> propagator = propagator(nThreads);
+      propagator.options.targetedRelativeESS = Double.POSITIVE_INFINITY;
+      propagator.options.maxNumberOfVirtualParticles = 100000;
+      WeightedStatistics<Double> statistics = new WeightedStatistics<>(x -> x);
+      propagator.addAccumulator(statistics);
+      PropagationResult<Double> result = propagator.execute();
+      
+      Assert.assertEquals(100000, statistics.getNumberOfSamples());
+      Assert.assertEquals(result.population.getLogSum(), statistics.getLogSum(), 1e-8);
+      Assert.assertEquals(exact, statistics.mean(0), 5.0 * statistics.standardError(0));
+    }
+  }
+  
+  @Test
+  public void testSampleStore()
+  {
+    ParticleCodec<Double> codec = new ParticleCodec<Double>() 
+    {
+      @Override
+      public int byteSize()
+      {
+        return Double.BYTES;
+      }
+
+      @Override
+      public void encode(Double particle, ByteBuffer buffer, int offset)
+      {
+        buffer.putDouble(offset, particle);
+      }
+
+      @Override
+      public Double decode(ByteBuffer buffer, int offset)
+      {
+        return buffer.getDouble(offset);
+      }
+    };
+    for (int nThreads : new int[]{1, 4})
+    {
+      PropagationResult<Double> reference = propagator(nThreads).execute();
+      StreamingPropagator<Double> propagator = propagator(nThreads);
+      ParticleStore<Double> store = ParticleStore.offHeap(codec, propagator.options.numberOfConcreteParticles);
+      propagator.setSampleStore(store);
+      PropagationResult<Double> result = propagator.execute();
+      Assert.assertEquals(reference.samples, result.samples);
+      
+      // reusing the store invalidates the earlier samples
+      StreamingPropagator<Double> next = propagator(nThreads);
+      next.setSampleStore(ParticleStore.offHeap(codec, propagator.options.numberOfConcreteParticles));
+      next.execute();
+      Assert.assertEquals(reference.samples, result.samples);
+      next = propagator(nThreads);
+      next.setSampleStore(store);
+      PropagationResult<Double> reused = next.execute();
+      Assert.assertEquals(reference.samples, reused.samples);
+      try
+      {
+        result.samples.get(0);
+        Assert.fail();
+      }
+      catch (RuntimeException e)
+      {
+        Assert.assertTrue(e.getMessage().contains("overwritten"));
+      }
+    }
+  }
+  
+  @Test
+  public void testMetrics()
+  {
+    StringWriter csv = new StringWriter(), json = new StringWriter();
+    List<PropagationMetrics> reported = new ArrayList<>();
+    PropagationListener listener = ((PropagationListener) reported::add)
+        .andThen(MetricsSinks.csv(csv))
+        .andThen(MetricsSinks.jsonLines(json));
+    PropagationResult<Double> result = null;
+    for (int generation = 0; generation < 2; generation++)
+    {
+      StreamingPropagator<Double> propagator = propagator(1);
+      propagator.options.listener = listener;
+      result = propagator.execute();
+    }
+    
+    Assert.assertEquals(2, reported.size());
+    PropagationMetrics metrics = reported.get(1);
+    Assert.assertEquals(result.population.getNumberOfParticles(), metrics.nVirtualParticles);
+    Assert.assertEquals(result.population.logZEstimate(), metrics.logZIncrement, 0.0);
+    Assert.assertEquals(metrics.nVirtualParticles, metrics.nReplayedCalls);
+    Assert.assertTrue(metrics.nSanityCheckCalls < metrics.nReplayedCalls);
+    
+    String [] csvLines = csv.toString().split("\n");
+    Assert.assertEquals(3, csvLines.length);
+    Assert.assertTrue(csvLines[0].startsWith("generation,mode,"));
+    Assert.assertTrue(csvLines[2].startsWith("1,REPLAY,"));
+    String [] jsonLines = json.toString().split("\n");
+    Assert.assertEquals(2, jsonLines.length);
+    Assert.assertTrue(jsonLines[1].startsWith("{\"generation\":1,\"mode\":\"REPLAY\","));
+  }
+}
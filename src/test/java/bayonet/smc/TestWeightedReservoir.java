@@ -0,0 +1,49 @@
+package bayonet.smc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestWeightedReservoir
+{
+  private static final double [] weights = new double[]{0.5, 0.0, 3.0, 1.5, 0.25, 4.75};
+  
+  /**
+   * Each slot should hold particle i with probability w[i]/sum(w), whether the 
+   * stream is fed to a single reservoir, or split into two merged reservoirs.
+   */
+  @Test
+  public void testSelectionProbabilities()
+  {
+    Random random = new Random(1);
+    final int nSlots = 1000, nRepeats = 200;
+    double total = 0.0;
+    for (double w : weights)
+      total += w;
+    
+    for (boolean split : new boolean[]{false, true})
+    {
+      int [] counts = new int[weights.length];
+      for (int r = 0; r < nRepeats; r++)
+      {
+        WeightedReservoir<Integer> reservoir = new WeightedReservoir<>(nSlots, random);
+        WeightedReservoir<Integer> second = split ? new WeightedReservoir<>(nSlots, random) : reservoir;
+        for (int i = 0; i < weights.length; i++)
+        {
+          WeightedReservoir<Integer> current = i < weights.length / 2 ? reservoir : second;
+          if (current.offer(Math.log(weights[i])))
+            current.accept(i);
+        }
+        if (split)
+          reservoir.merge(second);
+        for (int sample : reservoir.samples())
+          counts[sample]++;
+      }
+      for (int i = 0; i < weights.length; i++)
+        Assert.assertEquals(weights[i] / total, ((double) counts[i]) / nSlots / nRepeats, 0.005);
+    }
+  }
+}
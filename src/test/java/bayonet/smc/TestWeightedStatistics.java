@@ -0,0 +1,59 @@
+package bayonet.smc;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class TestWeightedStatistics
+{
+  /**
+   * Compare with a two-pass computation, using log weights spread over a range 
+   * that would overflow if exponentiated directly.
+   */
+  @Test
+  public void testAgainstTwoPass()
+  {
+    Random random = new Random(1);
+    final int n = 10000;
+    double [] logWeights = new double[n];
+    double [] values = new double[n];
+    WeightedStatistics<Double> statistics = new WeightedStatistics<>(x -> x, x -> x * x * x);
+    for (int i = 0; i < n; i++)
+    {
+      logWeights[i] = 1000.0 + 20.0 * random.nextGaussian();
+      values[i] = random.nextGaussian();
+      statistics.add(logWeights[i], values[i]);
+    }
+    statistics.add(Double.NEGATIVE_INFINITY, 1e100);
+    
+    double max = Double.NEGATIVE_INFINITY;
+    for (double logWeight : logWeights)
+      max = Math.max(max, logWeight);
+    double sum = 0.0, sumOfSquares = 0.0, mean = 0.0, cubeMean = 0.0;
+    for (int i = 0; i < n; i++)
+    {
+      final double w = Math.exp(logWeights[i] - max);
+      sum += w;
+      sumOfSquares += w * w;
+      mean += w * values[i];
+      cubeMean += w * Math.pow(values[i], 3);
+    }
+    mean /= sum;
+    cubeMean /= sum;
+    double variance = 0.0;
+    for (int i = 0; i < n; i++)
+      variance += Math.exp(logWeights[i] - max) * (values[i] - mean) * (values[i] - mean);
+    variance /= sum;
+    
+    Assert.assertEquals(mean, statistics.mean(0), 1e-10);
+    Assert.assertEquals(cubeMean, statistics.mean(1), 1e-10);
+    Assert.assertEquals(variance, statistics.variance(0), 1e-10);
+    Assert.assertEquals(variance + mean * mean, statistics.secondMoment(0), 1e-10);
+    Assert.assertEquals(sum * sum / sumOfSquares, statistics.ess(), 1e-6);
+    Assert.assertEquals(max + Math.log(sum), statistics.getLogSum(), 1e-10);
+    Assert.assertEquals(n + 1, statistics.getNumberOfSamples());
+  }
+}